@@ -0,0 +1,50 @@
+package io.github.syncxplus.tcpusb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AndroidPubKey#verify} of an AUTH_RSAPUBLICKEY against the signature of a token, with a
+ * 2048-bit key encoded and signed by {@link AdbClient} the way adb clients do it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AuthBenchmark {
+    private String key;
+    private byte[] token;
+    private byte[] signature;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair pair = generator.generateKeyPair();
+        key = AdbClient.encode((RSAPublicKey) pair.getPublic(), "bench@tcpusb") + "\0";
+        token = Protocol.generateToken(20);
+        signature = AdbClient.sign(pair.getPrivate(), token);
+        if (!AndroidPubKey.verify(key, token, signature)) {
+            throw new IllegalStateException("signature not verified");
+        }
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return AndroidPubKey.verify(key, token, signature);
+    }
+
+    @Benchmark
+    public byte[] generateToken() {
+        return Protocol.generateToken(20);
+    }
+}
@@ -0,0 +1,112 @@
+package io.github.syncxplus.tcpusb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a JMH CSV result file against the committed baseline and exits with 1 if a benchmark
+ * regressed by more than the threshold, in score or in allocated bytes per operation.
+ * <pre>
+ * gradle jmh jmhCompare [-Pthreshold=10]
+ * </pre>
+ */
+public class BaselineCompare {
+    private static final String ALLOC = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCompare <baseline.csv> <results.csv> [threshold %]");
+            System.exit(1);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        Map<String, Result> baseline = read(Paths.get(args[0]));
+        Map<String, Result> results = read(Paths.get(args[1]));
+        int regressions = 0;
+        System.out.printf("%-80s %14s %14s %8s%n", "benchmark", "baseline", "result", "change");
+        for (Result result : results.values()) {
+            Result base = baseline.get(result.key);
+            if (base == null) {
+                System.out.printf("%-80s %14s %14.2f %8s%n", result.key, "-", result.score, "new");
+                continue;
+            }
+            double change = base.score == 0 ? 0 : (result.score - base.score) / base.score * 100;
+            boolean regressed = (result.higherIsBetter ? -change : change) > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-80s %14.2f %14.2f %+7.1f%%%s%n", result.key, base.score, result.score, change, regressed ? " REGRESSION" : "");
+        }
+        if (regressions > 0) {
+            System.err.println(regressions + " benchmark(s) regressed by more than " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Rows of "Benchmark","Mode","Threads","Samples","Score","Score Error (99.9%)","Unit",params...
+     * keyed by benchmark and params; only the score and the normalized allocation rate are kept
+     */
+    private static Map<String, Result> read(Path file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        List<String> header = lines.isEmpty() ? new ArrayList<>() : split(lines.get(0));
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+            List<String> row = split(line);
+            if (row.size() < 7) {
+                continue;
+            }
+            String benchmark = row.get(0);
+            boolean alloc = benchmark.endsWith(ALLOC);
+            if (benchmark.contains(":") && !alloc) {
+                continue;
+            }
+            StringBuilder key = new StringBuilder(benchmark);
+            for (int i = 7; i < row.size() && i < header.size(); i++) {
+                if (row.get(i).isEmpty()) {
+                    continue;
+                }
+                key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(row.get(i));
+            }
+            boolean higherIsBetter = !alloc && "thrpt".equals(row.get(1));
+            results.put(key.toString(), new Result(key.toString(), Double.parseDouble(row.get(4)), higherIsBetter));
+        }
+        return results;
+    }
+
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static final class Result {
+        private final String key;
+        private final double score;
+        private final boolean higherIsBetter;
+
+        Result(String key, double score, boolean higherIsBetter) {
+            this.key = key;
+            this.score = score;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.syncxplus.tcpusb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The A_OPEN check of Connection.isAllowed on shell commands as long as test runner invocations,
+ * against the FORBIDDEN_PATTERN regex it replaced
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PolicyBenchmark {
+    private static final Pattern FORBIDDEN_PATTERN = Pattern.compile("(^|reboot:|shell:|.*\\s)($|kill|reboot|rm|su)($|\\s.*)");
+
+    @Param({"64", "4096"})
+    int length;
+
+    private String command;
+    private int counter;
+
+    @Setup
+    public void setup() {
+        CommandPolicy.configure(null, null, 0);
+        StringBuilder sb = new StringBuilder("shell:am instrument -w");
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append(" -e arg").append(i).append(" value").append(i);
+        }
+        command = sb.toString();
+    }
+
+    @Benchmark
+    public boolean policyCached() {
+        return CommandPolicy.evaluate(command).allowed;
+    }
+
+    @Benchmark
+    public boolean policyUncached() {
+        return CommandPolicy.evaluate(command + (counter++)).allowed;
+    }
+
+    @Benchmark
+    public boolean legacyRegex() {
+        return FORBIDDEN_PATTERN.matcher(command).matches();
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.syncxplus.tcpusb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode of ADB messages. The parse mix is what an adb client sends during a typical
+ * session: mostly A_OKAY acks, small shell writes and a few 64 KB sync pushes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProtocolBenchmark {
+    @State(Scope.Thread)
+    public static class Payload {
+        @Param({"0", "64", "4096", "65536", "262144"})
+        int size;
+
+        private byte[] payload;
+
+        @Setup
+        public void setup() {
+            payload = new byte[size];
+            new Random(42).nextBytes(payload);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Mix {
+        private byte[] mix;
+        private int mixCount;
+
+        @Setup
+        public void setup() throws IOException {
+            Random random = new Random(42);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < 100; i++) {
+                byte[] message;
+                if (i % 10 < 6) {
+                    message = Protocol.generateReady(i, i + 1);
+                } else if (i % 10 < 9) {
+                    byte[] shell = new byte[16 + random.nextInt(200)];
+                    random.nextBytes(shell);
+                    message = Protocol.generateWrite(i, i + 1, shell);
+                } else {
+                    byte[] sync = new byte[64 * 1024];
+                    random.nextBytes(sync);
+                    message = Protocol.generateWrite(i, i + 1, sync);
+                }
+                out.write(message);
+                mixCount++;
+            }
+            mix = out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public void parseMix(Mix mix, Blackhole blackhole) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(mix.mix);
+        for (int i = 0; i < mix.mixCount; i++) {
+            blackhole.consume(Protocol.AdbMessage.parse(in));
+        }
+    }
+
+    @Benchmark
+    public byte[] generateWithChecksum(Payload payload) {
+        return Protocol.generateMessage(Protocol.A_WRTE, 1, 2, payload.payload, 0, payload.size, true);
+    }
+
+    @Benchmark
+    public byte[] generateWithoutChecksum(Payload payload) {
+        return Protocol.generateMessage(Protocol.A_WRTE, 1, 2, payload.payload, 0, payload.size, false);
+    }
+
+    @Benchmark
+    public int payloadChecksum(Payload payload) {
+        return Protocol.getPayloadChecksum(payload.payload, 0, payload.size);
+    }
+}
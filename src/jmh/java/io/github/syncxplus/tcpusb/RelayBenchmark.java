@@ -0,0 +1,121 @@
+package io.github.syncxplus.tcpusb;
+
+import com.android.ddmlib.IDevice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The relay path of a real {@link Service} and {@link Connection} over loopback sockets: a device
+ * streams bytes to the adb server socket, the client acks each A_WRTE, and the ack makes the
+ * service read the next one from the device and reply it to the client
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RelayBenchmark {
+    private static final String SERIAL = "relay-bench";
+    private static final int REMOTE_ID = 1;
+
+    @Param({"4096", "65536", "262144"})
+    int maxDataLength;
+
+    @Param({"4096", "262144"})
+    int readSize;
+
+    private ServerSocket adb;
+    private Socket client;
+    private Socket proxy;
+    private InputStream clientIn;
+    private Service service;
+    private Protocol.AdbMessage okay;
+
+    @Setup
+    public void setup() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        adb = new ServerSocket(0, 50, loopback);
+        Thread device = new Thread(this::serveDevice, "relay-bench-adb");
+        device.setDaemon(true);
+        device.start();
+        IDevice stub = AdbShards.device(SERIAL, name -> null);
+        Server server = Server.getInstance(stub);
+        server.setAdbAddress(new InetSocketAddress(loopback, adb.getLocalPort()));
+        try (ServerSocket listener = new ServerSocket(0, 50, loopback)) {
+            client = new Socket(loopback, listener.getLocalPort());
+            proxy = listener.accept();
+        }
+        client.setTcpNoDelay(true);
+        proxy.setTcpNoDelay(true);
+        clientIn = client.getInputStream();
+        Connection connection = new Connection(stub, SERIAL, server, proxy);
+        service = new Service(REMOTE_ID + 1, REMOTE_ID, connection, SERIAL, maxDataLength, false);
+        service.handle(message(Protocol.generateMessage(Protocol.A_OPEN, REMOTE_ID, 0, "shell:cat\0".getBytes())));
+        Protocol.AdbMessage ready = Protocol.AdbMessage.parse(clientIn);
+        if (ready == null || ready.command != Protocol.A_OKAY) {
+            throw new IllegalStateException("service not opened");
+        }
+        okay = message(Protocol.generateReady(REMOTE_ID, REMOTE_ID + 1));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        service.close();
+        client.close();
+        proxy.close();
+        adb.close();
+        Server.removeInstance(SERIAL);
+    }
+
+    /**
+     * Receive the A_WRTE the service relayed and ack it
+     */
+    @Benchmark
+    public int relay() throws IOException {
+        Protocol.AdbMessage write = Protocol.AdbMessage.parse(clientIn);
+        service.handle(okay);
+        return write.payloadLength;
+    }
+
+    private static Protocol.AdbMessage message(byte[] packet) throws IOException {
+        return Protocol.AdbMessage.parse(new ByteArrayInputStream(packet));
+    }
+
+    /**
+     * Answer host:transport and the service with OKAY, then stream <code>readSize</code> writes
+     * until the service closes the socket
+     */
+    private void serveDevice() {
+        byte[] chunk = new byte[readSize];
+        new Random(42).nextBytes(chunk);
+        try (Socket socket = adb.accept()) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < 2; i++) {
+                AdbHost.readHexString(in);
+                out.write("OKAY".getBytes());
+            }
+            while (true) {
+                out.write(chunk);
+            }
+        } catch (IOException e) {
+            //do nothing
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.syncxplus;
+
+import io.github.syncxplus.tcpusb.ConnectionInfo;
+import io.github.syncxplus.tcpusb.Server;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client connections per device with their age, idle time, services and buffered bytes, on
+ * <code>/connections</code>
+ */
+@Component
+public class ConnectionsEndpoint extends AbstractEndpoint<Map<String, List<ConnectionInfo>>> {
+    public ConnectionsEndpoint() {
+        super("connections");
+    }
+
+    @Override
+    public Map<String, List<ConnectionInfo>> invoke() {
+        return Server.describeConnections();
+    }
+}
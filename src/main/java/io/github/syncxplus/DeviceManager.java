@@ -4,9 +4,18 @@ import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
-import io.github.syncxplus.tcpusb.Server;
+import io.github.syncxplus.tcpusb.AdbShards;
+import io.github.syncxplus.tcpusb.CommandPolicy;
+import io.github.syncxplus.tcpusb.DevicePool;
+import io.github.syncxplus.tcpusb.IdleReaper;
+import io.github.syncxplus.tcpusb.Onboarding;
+import io.github.syncxplus.tcpusb.ScreenCache;
+import io.github.syncxplus.tcpusb.SessionCapture;
+import io.github.syncxplus.tcpusb.SessionResume;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Scope;
@@ -23,7 +32,46 @@ public class DeviceManager implements AndroidDebugBridge.IDeviceChangeListener,
     private static final Logger LOGGER = LoggerFactory.getLogger(DeviceManager.class);
     private static final ConcurrentMap<String, IDevice> deviceMap = new ConcurrentHashMap<>();
     private static boolean isStarted;
-    private static int port;
+    @Value("${tcpusb.sync.coalesce:false}")
+    private boolean syncCoalescing;
+    @Autowired
+    private PolicyProperties policyProperties;
+    @Autowired
+    private PoolProperties poolProperties;
+    @Value("${tcpusb.capture.dir:}")
+    private String captureDir;
+    @Value("${tcpusb.capture.size:64}")
+    private int captureSize;
+    @Value("${tcpusb.screen.fresh:0}")
+    private long screenFresh;
+    @Value("${tcpusb.screen.rate:2}")
+    private double screenRate;
+    @Value("${tcpusb.screen.memory:64}")
+    private int screenMemory;
+    @Value("${tcpusb.idle.connection:0}")
+    private int idleConnection;
+    @Value("${tcpusb.idle.service:0}")
+    private int idleService;
+    @Value("${tcpusb.idle.keepalive:0}")
+    private int keepalive;
+    @Value("${tcpusb.resume.ttl:0}")
+    private int resumeTtl;
+    @Value("${tcpusb.resume.grace:10}")
+    private int resumeGrace;
+    @Value("${tcpusb.adb.shards:}")
+    private String adbShards;
+    @Value("${tcpusb.adb.spawn:0}")
+    private int adbSpawn;
+    @Value("${tcpusb.adb.base-port:5041}")
+    private int adbBasePort;
+    @Value("${tcpusb.adb.path:adb}")
+    private String adbPath;
+    @Value("${tcpusb.adb.interval:1}")
+    private int adbInterval;
+    @Value("${tcpusb.onboard.ports:8081-8580}")
+    private String onboardPorts;
+    @Value("${tcpusb.onboard.parallel:8}")
+    private int onboardParallel;
 
     public static Map<String, IDevice> getDevices() {
         return deviceMap;
@@ -36,7 +84,17 @@ public class DeviceManager implements AndroidDebugBridge.IDeviceChangeListener,
     private synchronized void start() {
         if (!isStarted) {
             isStarted = true;
-            port = 8080 + (int) Math.round(Math.random() * 100);
+            Onboarding.configure(onboardPorts, onboardParallel, syncCoalescing);
+            CommandPolicy.configure(policyProperties.getRules(), policyProperties.getFile(), policyProperties.getReloadInterval());
+            SessionCapture.configure(captureDir, captureSize);
+            IdleReaper.configure(idleConnection, idleService, keepalive);
+            ScreenCache.configure(screenFresh, screenRate, screenMemory);
+            SessionResume.configure(resumeTtl, resumeGrace);
+            DevicePool.configure(poolProperties.getListeners(), poolProperties.getCapacity(), poolProperties.getQueueTimeout(), poolProperties.getSticky());
+            if (AdbShards.configure(adbShards, adbSpawn, adbBasePort, adbPath, adbInterval, this)) {
+                LOGGER.info("Listening devices on adb shards ...");
+                return;
+            }
             DdmPreferences.setLogLevel(Log.LogLevel.VERBOSE.getStringValue());
             AndroidDebugBridge.initIfNeeded(false);
             AndroidDebugBridge.createBridge();
@@ -56,10 +114,7 @@ public class DeviceManager implements AndroidDebugBridge.IDeviceChangeListener,
         } else {
             LOGGER.info("device added {}", serial);
         }
-        Server server = Server.getInstance(device);
-        server.setKey(serial);
-        server.setPort(++port);
-        server.stop().start();
+        Onboarding.connected(device);
     }
 
     @Override
@@ -71,10 +126,7 @@ public class DeviceManager implements AndroidDebugBridge.IDeviceChangeListener,
         } else {
             LOGGER.info("device not existed {}", serial);
         }
-        Server server = Server.removeInstance(serial);
-        if (server != null) {
-            server.stop();
-        }
+        Onboarding.disconnected(device);
     }
 
     @Override
@@ -1,11 +1,19 @@
 package io.github.syncxplus;
 
+import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 @SpringBootApplication
 public class Main {
     public static void main(String[] args) {
+        try {
+            Class.forName("jdk.jfr.Event");//the proxy events extend it
+        } catch (ClassNotFoundException e) {
+            LoggerFactory.getLogger(Main.class).error("tcpusb needs jdk.jfr (JDK 11+ or OpenJDK 8u262+), java {} has none",
+                    System.getProperty("java.version"));
+            System.exit(1);
+        }
         SpringApplication.run(Main.class, args);
     }
 }
@@ -0,0 +1,39 @@
+package io.github.syncxplus;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Component
+@ConfigurationProperties(prefix = "tcpusb.policy")
+public class PolicyProperties {
+    private List<String> rules = new ArrayList<>();
+    private String file;
+    private int reloadInterval = 5;
+
+    public List<String> getRules() {
+        return rules;
+    }
+
+    public void setRules(List<String> rules) {
+        this.rules = rules;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    public int getReloadInterval() {
+        return reloadInterval;
+    }
+
+    public void setReloadInterval(int reloadInterval) {
+        this.reloadInterval = reloadInterval;
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.syncxplus;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Component
+@ConfigurationProperties(prefix = "tcpusb.pool")
+public class PoolProperties {
+    private List<String> listeners = new ArrayList<>();
+    private int capacity = 1;
+    private int queueTimeout = 300;
+    private int sticky = 600;
+
+    public List<String> getListeners() {
+        return listeners;
+    }
+
+    public void setListeners(List<String> listeners) {
+        this.listeners = listeners;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    public void setQueueTimeout(int queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    public int getSticky() {
+        return sticky;
+    }
+
+    public void setSticky(int sticky) {
+        this.sticky = sticky;
+    }
+}
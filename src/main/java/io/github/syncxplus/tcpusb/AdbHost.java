@@ -0,0 +1,40 @@
+package io.github.syncxplus.tcpusb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replies of the adb server to the host requests of {@link com.android.ddmlib.AdbHelper#formAdbRequest}:
+ * <code>OKAY</code>, or <code>FAIL</code> + 4 hex digits length + message, then what the service sends.
+ */
+class AdbHost {
+    /**
+     * @throws IOException with the adb error as message if the reply is not OKAY
+     */
+    static void checkOkay(InputStream in) throws IOException {
+        String status = readString(in, 4);
+        if (!"OKAY".equals(status)) {
+            throw new IOException("FAIL".equals(status) ? readHexString(in) : status);
+        }
+    }
+
+    /**
+     * @return 4 hex digits length + string
+     */
+    static String readHexString(InputStream in) throws IOException {
+        return readString(in, Integer.parseInt(readString(in, 4), 16));
+    }
+
+    /**
+     * @return the string read, shorter than <code>length</code> if the stream ended
+     */
+    static String readString(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read, count = 0;
+        while (count < length && (read = in.read(bytes, count, length - count)) > 0) {
+            count += read;
+        }
+        return new String(bytes, 0, count, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,341 @@
+package io.github.syncxplus.tcpusb;
+
+import com.android.ddmlib.AdbHelper;
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import io.micrometer.core.instrument.Meter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Devices spread over several adb server instances instead of the one of the ddmlib bridge. Each
+ * instance is polled with <code>host:devices</code>, a device belongs to the instance reporting it
+ * online (the one with the fewest devices if several do, then it stays there), and the services of
+ * a device connect to its owner. A network device is moved to the least loaded instance when it is
+ * added to one holding more than one device above it. Instances are attached by address, or
+ * spawned with <code>adb -P PORT start-server</code> and killed on exit.
+ */
+public class AdbShards {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdbShards.class);
+    private static final int TIMEOUT = 5_000;
+    private static final Pattern PROPERTY = Pattern.compile("\\[(.+?)]: \\[(.*)]");
+    private static final List<Shard> shards = new ArrayList<>();
+    private static final Map<String, Shard> owners = new ConcurrentHashMap<>();
+    private static final Map<String, IDevice> devices = new HashMap<>();
+    private static AndroidDebugBridge.IDeviceChangeListener listener;
+    private static ScheduledExecutorService executor;
+    private static Thread killer;
+
+    /**
+     * @param attach comma separated host:port of running adb servers
+     * @param spawn adb servers to start on the ports from basePort
+     * @param adb path of the adb executable
+     * @param interval s between polls of the device lists
+     * @return whether devices are tracked here instead of by the ddmlib bridge
+     */
+    public static synchronized boolean configure(String attach, int spawn, int basePort, String adb, int interval,
+                                                 AndroidDebugBridge.IDeviceChangeListener listener) {
+        shutdown();
+        if (attach != null) {
+            for (String address : attach.split(",")) {
+                address = address.trim();
+                if (address.isEmpty()) {
+                    continue;
+                }
+                int colon = address.lastIndexOf(':');
+                int port = -1;
+                if (colon > 0) {
+                    try {
+                        port = Integer.parseInt(address.substring(colon + 1));
+                    } catch (NumberFormatException e) {
+                        //do nothing
+                    }
+                }
+                if (port <= 0 || port > 65535) {
+                    LOGGER.error("adb server ignored, host:port expected: {}", address);
+                    continue;
+                }
+                shards.add(new Shard(new InetSocketAddress(address.substring(0, colon), port), null));
+            }
+        }
+        for (int i = 0; i < spawn; i++) {
+            int port = basePort + i;
+            try {
+                run(adb, "-P", String.valueOf(port), "start-server");
+                shards.add(new Shard(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), adb));
+            } catch (IOException e) {
+                LOGGER.error("adb server on port {} start error", port, e);
+            }
+        }
+        if (shards.isEmpty()) {
+            return false;
+        }
+        AdbShards.listener = listener;
+        for (Shard shard : shards) {
+            shard.gauge = ProxyMetrics.shardGauge(shard.toString(), shard, AdbShards::countDevices);
+        }
+        if (spawn > 0 && killer == null) {
+            killer = new Thread(AdbShards::shutdown, "adb-shards-kill");
+            Runtime.getRuntime().addShutdownHook(killer);
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adb-shards");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(AdbShards::poll, 0, interval, TimeUnit.SECONDS);
+        LOGGER.info("devices tracked on adb servers {}", shards);
+        return true;
+    }
+
+    /**
+     * Stop polling, kill the spawned adb servers and forget the devices
+     */
+    static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        for (Shard shard : shards) {
+            if (shard.gauge != null) {
+                ProxyMetrics.remove(Collections.singletonList(shard.gauge));
+            }
+            if (shard.adb != null) {
+                try {
+                    run(shard.adb, "-P", String.valueOf(shard.address.getPort()), "kill-server");
+                } catch (IOException e) {
+                    //do nothing
+                }
+            }
+        }
+        shards.clear();
+        owners.clear();
+        devices.clear();
+    }
+
+    /**
+     * @return the adb server owning the device, null if it is not tracked here
+     */
+    static InetSocketAddress route(String serial) {
+        Shard shard = owners.get(serial);
+        return shard != null ? shard.address : null;
+    }
+
+    static synchronized void poll() {
+        Map<String, List<Shard>> seen = new LinkedHashMap<>();
+        for (Shard shard : shards) {
+            try {
+                for (String line : query(shard.address, "host:devices").split("\n")) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length >= 2 && "device".equals(fields[1])) {
+                        seen.computeIfAbsent(fields[0], s -> new ArrayList<>()).add(shard);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("adb server {} devices error: {}", shard, e.getMessage());
+            }
+        }
+        for (String serial : new ArrayList<>(devices.keySet())) {
+            if (!seen.containsKey(serial)) {
+                owners.remove(serial);
+                IDevice device = devices.remove(serial);
+                LOGGER.info("{} gone from {}", serial, shards);
+                announce(device, false);
+            }
+        }
+        for (Map.Entry<String, List<Shard>> entry : seen.entrySet()) {
+            String serial = entry.getKey();
+            Shard owner = owners.get(serial);
+            if (owner != null && entry.getValue().contains(owner)) {
+                continue;
+            }
+            Shard target = leastLoaded(entry.getValue());
+            Shard least = leastLoaded(shards);
+            if (owner == null && serial.contains(":") && countDevices(least) + 1 < countDevices(target) && move(serial, target, least)) {
+                target = least;
+            }
+            owners.put(serial, target);
+            LOGGER.info("{} on adb server {}", serial, target);
+            IDevice device = device(serial, properties(serial, target.address)::get);
+            devices.put(serial, device);
+            announce(device, true);
+        }
+    }
+
+    private static void announce(IDevice device, boolean connected) {
+        try {
+            if (connected) {
+                listener.deviceConnected(device);
+            } else {
+                listener.deviceDisconnected(device);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("{} listener error", device.getSerialNumber(), e);
+        }
+    }
+
+    private static Shard leastLoaded(List<Shard> candidates) {
+        Shard least = candidates.get(0);
+        for (Shard shard : candidates) {
+            if (countDevices(shard) < countDevices(least)) {
+                least = shard;
+            }
+        }
+        return least;
+    }
+
+    private static int countDevices(Shard shard) {
+        int count = 0;
+        for (Shard owner : owners.values()) {
+            if (owner == shard) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean move(String serial, Shard from, Shard to) {
+        try {
+            query(from.address, "host:disconnect:" + serial);
+            String reply = query(to.address, "host:connect:" + serial);
+            if (reply.startsWith("connected") || reply.startsWith("already connected")) {
+                LOGGER.info("{} moved from adb server {} to {}", serial, from, to);
+                return true;
+            }
+            LOGGER.warn("{} move to adb server {} failed: {}", serial, to, reply);
+            query(from.address, "host:connect:" + serial);
+        } catch (IOException e) {
+            LOGGER.warn("{} move to adb server {} error: {}", serial, to, e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * @return the reply of a host service
+     */
+    private static String query(InetSocketAddress address, String request) throws IOException {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            socket.setSoTimeout(TIMEOUT);
+            InputStream in = socket.getInputStream();
+            socket.getOutputStream().write(AdbHelper.formAdbRequest(request));
+            AdbHost.checkOkay(in);
+            return AdbHost.readHexString(in);
+        }
+    }
+
+    /**
+     * @return getprop of the device, empty if it failed
+     */
+    static Map<String, String> properties(String serial, InetSocketAddress address) {
+        Map<String, String> properties = new HashMap<>();
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            socket.setSoTimeout(TIMEOUT);
+            InputStream in = socket.getInputStream();
+            socket.getOutputStream().write(AdbHelper.formAdbRequest("host:transport:" + serial));
+            AdbHost.checkOkay(in);
+            socket.getOutputStream().write(AdbHelper.formAdbRequest("shell:getprop"));
+            AdbHost.checkOkay(in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            Matcher matcher = PROPERTY.matcher(new String(out.toByteArray(), StandardCharsets.UTF_8));
+            while (matcher.find()) {
+                properties.put(matcher.group(1), matcher.group(2));
+            }
+        } catch (IOException e) {
+            LOGGER.warn("{} getprop error: {}", serial, e.getMessage());
+        }
+        return properties;
+    }
+
+    /**
+     * @return a device known by its serial and properties only, enough for a {@link Server}
+     */
+    static IDevice device(String serial, Function<String, String> properties) {
+        return (IDevice) Proxy.newProxyInstance(IDevice.class.getClassLoader(), new Class<?>[] {IDevice.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getSerialNumber":
+                    return serial;
+                case "getProperty":
+                    return properties.apply((String) args[0]);
+                case "isOnline":
+                    return true;
+                case "getState":
+                    return IDevice.DeviceState.ONLINE;
+                case "toString":
+                    return serial;
+                case "hashCode":
+                    return serial.hashCode();
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) {
+                        return false;
+                    } else if (type == int.class) {
+                        return 0;
+                    } else if (type == long.class) {
+                        return 0L;
+                    }
+                    return null;
+            }
+        });
+    }
+
+    private static void run(String... command) throws IOException {
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(System.getProperty("java.io.tmpdir"), "adb-shards.log")))
+                .start();
+        try {
+            if (!process.waitFor(30, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                throw new IOException(String.join(" ", command) + " failed");
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            throw new IOException(e);
+        }
+    }
+
+    private static final class Shard {
+        private final InetSocketAddress address;
+        private final String adb;
+        private Meter gauge;
+
+        Shard(InetSocketAddress address, String adb) {
+            this.address = address;
+            this.adb = adb;
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+}
@@ -35,8 +35,8 @@ import java.util.regex.Pattern;
 public class AndroidPubKey {
     private static final Logger LOGGER = LoggerFactory.getLogger(AndroidPubKey.class);
     private static final Pattern RSA_KEY_PATTERN = Pattern.compile("^((?:[A-Za-z0-9+/]{4})*(?:[A-Za-z0-9+/]{2}==|[A-Za-z0-9+/]{3}=)?)\0? (.*)\\s*$");
-    private static final int ANDROID_PUBKEY_MODULUS_SIZE = 256;
-    private static final int ANDROID_PUBKEY_ENCODED_SIZE = 524;
+    static final int ANDROID_PUBKEY_MODULUS_SIZE = 256;
+    static final int ANDROID_PUBKEY_ENCODED_SIZE = 524;
     private static final List<Integer> EXPONENT = new ArrayList<Integer>(){{
         add(3);
         add(65537);
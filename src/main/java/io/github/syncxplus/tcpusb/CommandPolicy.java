@@ -0,0 +1,297 @@
+package io.github.syncxplus.tcpusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Allow/deny rules for A_OPEN service strings, one rule per line:
+ * <pre>
+ * &lt;allow|deny&gt; &lt;service|*&gt; &lt;any|empty|first|token|prefix&gt; [word ...]
+ * </pre>
+ * <dl>
+ * <dt>service  <dd>name before the first ':' or ',' ("shell" also matches "shell,v2,raw:"), ':' for none, or * for all
+ * <dt>any      <dd>always matches
+ * <dt>empty    <dd>no arguments after ':', e.g. an interactive "shell:"
+ * <dt>first    <dd>the first argument is one of the words
+ * <dt>token    <dd>any whitespace separated argument is one of the words
+ * <dt>prefix   <dd>the arguments start with one of the words
+ * </dl>
+ * The first matching rule wins, a command matching no rule is allowed.
+ * Evaluation is a single pass over the command, decisions are cached per rule set.
+ * <p>
+ * The defaults deny what the former FORBIDDEN_PATTERN denied, and a bit more: a kill/reboot/rm/su
+ * token is denied wherever it appears, so <code>exec:rm</code> and <code>exec:su</code> are too,
+ * and an interactive <code>shell,v2,raw:</code> is denied like <code>shell:</code>. Commands the
+ * pattern only caught by accident, ending with whitespace or holding two whitespaces in a row, are
+ * allowed.
+ */
+public class CommandPolicy {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandPolicy.class);
+    private static final int CACHE_SIZE = 1024;
+    private static final List<String> DEFAULT_RULES = Collections.unmodifiableList(Arrays.asList(
+            "deny : empty",
+            "deny shell empty",
+            "deny reboot empty",
+            "deny * token kill reboot rm su"
+    ));
+    private static volatile Rules rules = new Rules(parse(DEFAULT_RULES), "default");
+    private static Thread watcher;
+
+    /**
+     * Load rules, from <code>file</code> if set (checked for changes every <code>reloadInterval</code> seconds),
+     * otherwise from <code>lines</code>, otherwise the built-in defaults.
+     */
+    public static synchronized void configure(List<String> lines, String file, int reloadInterval) {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+        if (file != null && !file.isEmpty()) {
+            File policy = new File(file);
+            reload(policy);
+            if (reloadInterval > 0) {
+                watcher = new Thread(() -> watch(policy, reloadInterval * 1000L), "policy-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+        } else if (lines != null && !lines.isEmpty()) {
+            load(lines, "configuration");
+        } else {
+            load(DEFAULT_RULES, "default");
+        }
+    }
+
+    /**
+     * Replace the active rules, the decision cache is dropped with the old rule set
+     * @throws IllegalArgumentException if a rule is malformed, the active rules are kept
+     */
+    public static void load(List<String> lines, String source) {
+        rules = new Rules(parse(lines), source);
+        LOGGER.info("command policy loaded from {}: {} rules", source, rules.rules.size());
+    }
+
+    static Decision evaluate(String command) {
+        return rules.evaluate(command);
+    }
+
+    private static boolean reload(File policy) {
+        try {
+            load(Files.readAllLines(policy.toPath(), StandardCharsets.UTF_8), policy.getPath());
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.error("command policy {} not loaded, keeping rules from {}", policy, rules.source, e);
+            return false;
+        }
+    }
+
+    private static void watch(File policy, long interval) {
+        long modified = policy.lastModified();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long current = policy.lastModified();
+            if (current != modified) {
+                modified = current;
+                reload(policy);
+            }
+        }
+    }
+
+    private static List<Rule> parse(List<String> lines) {
+        List<Rule> list = new ArrayList<>();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] words = trimmed.split("\\s+");
+            if (words.length < 3) {
+                throw new IllegalArgumentException("Incomplete rule: " + line);
+            }
+            boolean allow;
+            if ("allow".equals(words[0])) {
+                allow = true;
+            } else if ("deny".equals(words[0])) {
+                allow = false;
+            } else {
+                throw new IllegalArgumentException("Unknown action: " + line);
+            }
+            String service = words[1].endsWith(":") ? words[1].substring(0, words[1].length() - 1) : words[1];
+            Matcher matcher;
+            try {
+                matcher = Matcher.valueOf(words[2].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown matcher: " + line);
+            }
+            Set<String> values = new HashSet<>(Arrays.asList(words).subList(3, words.length));
+            if (values.isEmpty() && matcher.hasWords) {
+                throw new IllegalArgumentException("Missing words: " + line);
+            }
+            list.add(new Rule(trimmed, allow, service, matcher, values));
+        }
+        return list;
+    }
+
+    private enum Matcher {
+        ANY(false), EMPTY(false), FIRST(true), TOKEN(true), PREFIX(true);
+
+        private final boolean hasWords;
+
+        Matcher(boolean hasWords) {
+            this.hasWords = hasWords;
+        }
+    }
+
+    private static final class Rule {
+        private final String text;
+        private final boolean allow;
+        private final String service;
+        private final Matcher matcher;
+        private final Set<String> words;
+
+        Rule(String text, boolean allow, String service, Matcher matcher, Set<String> words) {
+            this.text = text;
+            this.allow = allow;
+            this.service = service;
+            this.matcher = matcher;
+            this.words = words;
+        }
+
+        boolean matches(Command command) {
+            if (!"*".equals(service) && !service.equals(command.service)) {
+                return false;
+            }
+            switch (matcher) {
+                case ANY:
+                    return true;
+                case EMPTY:
+                    return command.tokens.isEmpty();
+                case FIRST:
+                    return !command.tokens.isEmpty() && words.contains(command.tokens.get(0));
+                case TOKEN:
+                    for (String token : command.tokens) {
+                        if (words.contains(token)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case PREFIX:
+                    for (String word : words) {
+                        if (command.arguments.startsWith(word)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * A service string split once into its name and whitespace separated arguments:
+     * <code>shell,v2,raw:ls -l</code> is service <code>shell</code> with tokens <code>[ls, -l]</code>
+     */
+    static final class Command {
+        final String service;
+        final String arguments;
+        final List<String> tokens = new ArrayList<>();
+
+        Command(String command) {
+            int colon = command.indexOf(':');
+            int end = colon;
+            for (int i = 0; i < colon; i++) {
+                if (command.charAt(i) == ',') {
+                    end = i;
+                    break;
+                }
+            }
+            service = colon < 0 ? "" : command.substring(0, end);
+            arguments = command.substring(colon + 1);
+            int start = -1;
+            for (int i = colon + 1; i <= command.length(); i++) {
+                if (i == command.length() || Character.isWhitespace(command.charAt(i))) {
+                    if (start >= 0) {
+                        tokens.add(command.substring(start, i));
+                        start = -1;
+                    }
+                } else if (start < 0) {
+                    start = i;
+                }
+            }
+        }
+    }
+
+    static final class Decision {
+        final boolean allowed;
+        final String rule;
+        final long nanos;
+        final boolean cached;
+
+        Decision(boolean allowed, String rule, long nanos, boolean cached) {
+            this.allowed = allowed;
+            this.rule = rule;
+            this.nanos = nanos;
+            this.cached = cached;
+        }
+    }
+
+    private static final class Rules {
+        private final List<Rule> rules;
+        private final String source;
+        private final Map<String, Rule> cache = new LinkedHashMap<String, Rule>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Rule> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        Rules(List<Rule> rules, String source) {
+            this.rules = rules;
+            this.source = source;
+        }
+
+        Decision evaluate(String command) {
+            long start = System.nanoTime();
+            Rule match;
+            boolean cached;
+            synchronized (cache) {
+                cached = cache.containsKey(command);
+                match = cache.get(command);
+            }
+            if (!cached) {
+                match = null;
+                Command parsed = new Command(command);
+                for (Rule rule : rules) {
+                    if (rule.matches(parsed)) {
+                        match = rule;
+                        break;
+                    }
+                }
+                synchronized (cache) {
+                    cache.put(command, match);
+                }
+            }
+            Decision decision = new Decision(match == null || match.allow, match == null ? null : match.text, System.nanoTime() - start, cached);
+            LOGGER.debug("command policy [{} chars] {} by [{}] in {} us{}", command.length(),
+                    decision.allowed ? "allowed" : "denied", decision.rule, decision.nanos / 1000, cached ? " (cached)" : "");
+            return decision;
+        }
+    }
+}
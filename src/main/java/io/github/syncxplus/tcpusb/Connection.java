@@ -6,10 +6,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class Connection {
     private final static Logger LOGGER = LoggerFactory.getLogger(Connection.class);
@@ -17,20 +20,31 @@ class Connection {
     private final static String STRING_AUTH_REQUIRE = "AUTH Required!\nYou can find the auth command on the web.\nIt looks like: adb shell auth ...";
     private final static String STRING_AUTH_FAILURE = "AUTH FAILURE";
     private final static String STRING_AUTH_SUCCESS = "AUTH SUCCESS";
-    private final static Pattern FORBIDDEN_PATTERN = Pattern.compile("(^|reboot:|shell:|.*\\s)($|kill|reboot|rm|su)($|\\s.*)");
+    private final static AtomicInteger ids = new AtomicInteger();
     private Map<Integer, Service> services = new ConcurrentHashMap<>();
     private final IDevice device;
     private final String serial;
     private final String key;
     private final Server server;
-    private final Socket client;
+    private volatile Socket client;
+    private final ProxyMetrics.Client metrics;
+    private final SessionCapture capture;
+    private final int id = ids.incrementAndGet();
+    private final Object replyLock = new Object();
+    private final long created = System.currentTimeMillis();
+    private volatile long lastRead = System.nanoTime();
+    private volatile long lastProbe = System.nanoTime();
+    private volatile boolean detached;
+    private volatile SessionResume.Ticket ticket;
     private byte[] token;
-    private boolean connected;
+    private volatile boolean connected;
     private boolean authorized;
     private boolean status;
     private int maxLoad;
     private int syncToken;
     private byte[] clientSignature;
+    private String resumeTicket;
+    private String resumeStreams;
 
     Connection(IDevice device, String key, Server server, Socket client) {
         this.device = device;
@@ -38,14 +52,212 @@ class Connection {
         this.key = key;
         this.server = server;
         this.client = client;
+        this.metrics = new ProxyMetrics.Client(serial);
+        this.capture = SessionCapture.get(serial);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getSerial() {
+        return serial;
+    }
+
+    SessionCapture getCapture() {
+        return capture;
+    }
+
+    InetSocketAddress getAdbAddress() {
+        return server.getAdbAddress();
+    }
+
+    void relayed(int count) {
+        server.relayed(count);
+    }
+
+    ScreenCache getScreenCache() {
+        return server.getScreenCache();
     }
 
     void connect() {
         connected = true;
-        new Thread(this::clientMessageHandler).start();
+        if (IdleReaper.isKeepAlive()) {
+            try {
+                client.setKeepAlive(true);
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+        Socket socket = client;
+        new Thread(() -> clientMessageHandler(socket)).start();
+    }
+
+    /**
+     * Take the socket of a client presenting the resume ticket of this connection: banner first,
+     * then the streams it does not list are closed, and the ones it lists are resynced. A link that
+     * dropped without a FIN is still attached, its socket is closed here.
+     * @param received A_WRTE count of each stream the client still has open
+     */
+    void resume(Socket socket, Map<Integer, Long> received) throws IOException {
+        SessionResume.Ticket current = ticket;
+        if (current == null || !connected) {//disconnected since the ticket was redeemed
+            LOGGER.info("{} adb client {}: resume refused, connection closed", serial, socket.getRemoteSocketAddress());
+            socket.close();
+            return;
+        }
+        Socket old;
+        synchronized (replyLock) {
+            old = client;
+            client = socket;
+            detached = true;//services keep quiet until the banner is out, what they miss is resent below
+        }
+        try {
+            old.close();
+        } catch (IOException e) {
+            //do nothing
+        }
+        StringBuilder resumed = new StringBuilder();
+        for (Map.Entry<Integer, Service> entry : services.entrySet()) {
+            if (received.containsKey(entry.getKey())) {
+                resumed.append(resumed.length() > 0 ? "," : "").append(entry.getKey()).append(':').append(entry.getValue().getClientWrites());
+            }
+        }
+        SessionResume.Ticket next = SessionResume.issue(this, current.publicKey, current);
+        ticket = next;
+        if (!connected) {//disconnect() ran meanwhile and may have missed the new ticket
+            SessionResume.revoke(next);
+            ticket = null;
+            socket.close();
+            return;
+        }
+        lastRead = System.nanoTime();
+        synchronized (replyLock) {
+            detached = false;
+            reply(next != null ? Protocol.generateConnect(device, "resume=" + next.value, "resumed=" + resumed)
+                    : Protocol.generateConnect(device, "resumed=" + resumed));
+        }
+        LOGGER.info("{} adb client {}: resumed with streams {}", serial, socket.getRemoteSocketAddress(), resumed);
+        for (Integer id : services.keySet()) {
+            if (!received.containsKey(id)) {
+                removeService(id);
+            }
+        }
+        for (Map.Entry<Integer, Long> entry : received.entrySet()) {
+            Service service = services.get(entry.getKey());
+            if (service != null) {
+                service.resume(entry.getValue());
+            } else {
+                reply(Protocol.generateClose(0, entry.getKey()));
+            }
+        }
+        new Thread(() -> clientMessageHandler(socket)).start();
+    }
+
+    /**
+     * The link dropped with a ticket out: keep the connection and its services for the client to
+     * resume, the packets they send meanwhile are dropped
+     */
+    private void detach(Socket socket, String reason) {
+        synchronized (replyLock) {
+            if (socket != client || detached) {
+                return;
+            }
+            detached = true;
+        }
+        LOGGER.info("{} adb client {}: detached, {}", serial, socket.getRemoteSocketAddress(), reason);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //do nothing
+        }
+        SessionResume.detached(ticket);
+    }
+
+    private void lost(Socket socket, String reason) {
+        if (socket != client) {
+            return;//resumed on another socket
+        }
+        if (ticket != null) {
+            detach(socket, reason);
+        } else {
+            server.removeClient(this);
+        }
+    }
+
+    void closeServices() {
+        for (Integer id : services.keySet()) {
+            removeService(id);
+        }
+    }
+
+    /**
+     * Close the client socket first, so that a client that vanished can't block the close of the
+     * services on a full send buffer, then remove the connection
+     */
+    void reap(String reason) {
+        LOGGER.info("{} adb client {}: reaped, {}", serial, client.getRemoteSocketAddress(), reason);
+        ProxyMetrics.reaped(serial, "connection");
+        try {
+            client.close();
+        } catch (IOException e) {
+            //do nothing
+        }
+        server.removeClient(this);
+    }
+
+    /**
+     * Send an A_OKAY for stream 0, which adb clients ignore, once per <code>interval</code> of client
+     * silence, so that a peer gone without a FIN fails the write when TCP gives up on it
+     */
+    void probe(long interval) {
+        long now = System.nanoTime();
+        if (authorized && now - lastRead > interval && now - lastProbe > interval) {
+            lastProbe = now;
+            try {
+                reply(Protocol.generateReady(0, 0));
+            } catch (IOException e) {
+                reap("keepalive failed");
+            }
+        }
+    }
+
+    /**
+     * @return ns since the last packet from the client
+     */
+    long getIdleNanos() {
+        return System.nanoTime() - lastRead;
+    }
+
+    void reapIdleServices(long timeout) {
+        for (Map.Entry<Integer, Service> entry : services.entrySet()) {
+            long idle = entry.getValue().getIdleNanos();
+            if (idle > timeout) {
+                LOGGER.info("{} service {} reaped, idle {} s", serial, entry.getKey(), TimeUnit.NANOSECONDS.toSeconds(idle));
+                ProxyMetrics.reaped(serial, "service");
+                removeService(entry.getKey());
+            }
+        }
+    }
+
+    long getBufferedBytes() {
+        long buffered = 0;
+        for (Service service : services.values()) {
+            buffered += service.getBufferedBytes();
+        }
+        return buffered;
+    }
+
+    ConnectionInfo describe() {
+        return new ConnectionInfo(id, String.valueOf(client.getRemoteSocketAddress()), authorized,
+                System.currentTimeMillis() - created, TimeUnit.NANOSECONDS.toMillis(getIdleNanos()),
+                services.size(), getWaitingServiceCount(), getBufferedBytes());
     }
 
     void disconnect() {
+        connected = false;//first, so that a resume in progress sees it
+        SessionResume.revoke(ticket);
+        ticket = null;
         services.forEach((i, service) -> service.close());
         services.clear();
         try {
@@ -53,7 +265,6 @@ class Connection {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        connected = false;
     }
 
     void removeService(int id) {
@@ -63,8 +274,53 @@ class Connection {
         }
     }
 
+    int getServiceCount() {
+        return services.size();
+    }
+
+    int getWaitingServiceCount() {
+        int count = 0;
+        for (Service service : services.values()) {
+            if (service.isWaitingAck()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Services and the reader thread reply concurrently, a packet is written whole so that a large
+     * A_WRTE split by the socket can't be interleaved with another packet
+     */
     void reply(byte[] msg) throws IOException {
-        client.getOutputStream().write(msg);
+        ProxyEvents.Reply event = new ProxyEvents.Reply();
+        synchronized (replyLock) {
+            if (detached) {
+                return;
+            }
+            event.begin();//the write only, not the wait for the lock
+            try {
+                client.getOutputStream().write(msg);
+            } catch (IOException e) {
+                if (ticket == null) {
+                    throw e;
+                }
+                detach(client, e.getMessage());
+                return;
+            }
+            event.end();
+        }
+        int command = Protocol.getCommand(msg);
+        if (event.shouldCommit()) {
+            event.serial = serial;
+            event.command = Protocol.getCommandString(command);
+            event.size = msg.length;
+            event.commit();
+        }
+        metrics.sent(command, msg.length);
+        if (capture != null) {
+            capture.clientOut(id, msg);
+        }
     }
 
     private void reject(int localId, int remoteId, String reason) {
@@ -81,6 +337,13 @@ class Connection {
         int authType = message.arg0;
         switch (authType) {
             case Protocol.AUTH_SIGNATURE:
+                if (resumeTicket != null) {
+                    String resume = resumeTicket;
+                    resumeTicket = null;
+                    if (handOver(resume, message.payload)) {
+                        break;
+                    }
+                }
                 if (null == clientSignature) {
                     clientSignature = message.payload;
                 }
@@ -89,16 +352,29 @@ class Connection {
             case Protocol.AUTH_RSAPUBLICKEY:
                 if (null == clientSignature) {
                     LOGGER.error("{} Public key sent before signature", serial);
+                    ProxyMetrics.authFailure(serial, "order");
                     server.removeClient(this);
                 } else if (message.payload.length < 2) {
                     LOGGER.error("{} Empty RSA public key", serial);
+                    ProxyMetrics.authFailure(serial, "empty");
                     server.removeClient(this);
                 } else{
-                    if (AndroidPubKey.verify(new String(message.payload), token, clientSignature)) {
-                        reply(Protocol.generateConnect(device));
+                    ProxyEvents.Verify event = new ProxyEvents.Verify();
+                    event.begin();
+                    boolean verified = AndroidPubKey.verify(new String(message.payload), token, clientSignature);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.serial = serial;
+                        event.success = verified;
+                        event.commit();
+                    }
+                    if (verified) {
+                        ticket = SessionResume.issue(this, new String(message.payload), ticket);
+                        reply(ticket != null ? Protocol.generateConnect(device, "resume=" + ticket.value) : Protocol.generateConnect(device));
                         authorized = true;
                     } else {
                         LOGGER.error("{} RSA public key verification failed.", serial);
+                        ProxyMetrics.authFailure(serial, "signature");
                         server.removeClient(this);
                     }
                 }
@@ -116,9 +392,11 @@ class Connection {
                     status = true;
                     reject(localId, remoteId, STRING_AUTH_SUCCESS + STRING_EOF);
                 } else {
+                    ProxyMetrics.authFailure(serial, "key");
                     reject(localId, remoteId, STRING_AUTH_FAILURE + STRING_EOF);
                 }
             } else {
+                ProxyMetrics.rejected(serial, "auth");
                 reject(localId, remoteId, STRING_AUTH_REQUIRE + STRING_EOF);
             }
             return false;//leave it false no matter auth success or failure, it will return true next time
@@ -128,7 +406,10 @@ class Connection {
     }
 
     private boolean isAllowed(int localId, int remoteId, String command) {
-        if (FORBIDDEN_PATTERN.matcher(command).matches()) {
+        CommandPolicy.Decision decision = CommandPolicy.evaluate(command);
+        if (!decision.allowed) {
+            LOGGER.info("{} denied by [{}]: {}", serial, decision.rule, command);
+            ProxyMetrics.rejected(serial, "policy");
             reject(localId, remoteId, String.format("[%s] is not allowed" + STRING_EOF, command));
             return false;
         } else {
@@ -136,11 +417,59 @@ class Connection {
         }
     }
 
-    private void clientMessageHandler() {
-        while (connected) {
+    /**
+     * Give the socket of this new connection to the one of the ticket, and end this one
+     * @param signature of the AUTH token, by the key the ticket was issued to
+     * @return false if the ticket is refused, the client goes on with the usual AUTH
+     */
+    private boolean handOver(String resume, byte[] signature) throws IOException {
+        Map<Integer, Long> received;
+        try {
+            received = parseStreams(resumeStreams);
+        } catch (NumberFormatException e) {
+            LOGGER.info("{} adb client {}: resume refused, malformed streams {}", serial, client.getRemoteSocketAddress(), resumeStreams);
+            server.removeClient(this);
+            return true;
+        }
+        Connection owner = SessionResume.redeem(resume, serial, token, signature);
+        if (owner == null) {
+            return false;
+        }
+        connected = false;
+        server.handOver(this);
+        owner.resume(client, received);
+        return true;
+    }
+
+    /**
+     * @param streams <code>ID:RECEIVED:SENT,...</code> of the client
+     * @return RECEIVED by ID
+     * @throws NumberFormatException if a stream is not three numbers
+     */
+    static Map<Integer, Long> parseStreams(String streams) {
+        Map<Integer, Long> received = new HashMap<>();
+        if (streams != null && !streams.isEmpty()) {
+            for (String stream : streams.split(",")) {
+                String[] counts = stream.split(":");
+                if (counts.length != 3) {
+                    throw new NumberFormatException("For input string: \"" + stream + "\"");
+                }
+                received.put(Integer.parseInt(counts[0]), Long.parseLong(counts[1]));
+            }
+        }
+        return received;
+    }
+
+    private void clientMessageHandler(Socket socket) {
+        while (connected && socket == client && !detached) {
             try {
-                Protocol.AdbMessage message = Protocol.AdbMessage.parse(client.getInputStream());
+                Protocol.AdbMessage message = Protocol.AdbMessage.parse(socket.getInputStream());
                 if (message != null) {
+                    lastRead = System.nanoTime();
+                    metrics.received(message.command, Protocol.HEADER_LENGTH + message.payloadLength);
+                    if (capture != null) {
+                        capture.clientIn(id, message);
+                    }
                     switch (message.command) {
                         case Protocol.A_SYNC:
                             reply(Protocol.generateSync(syncToken));
@@ -148,6 +477,11 @@ class Connection {
                             break;
                         case Protocol.A_CNXN:
                             maxLoad = Math.min(message.arg1, Protocol.MAXDATA);
+                            Map<String, String> banner = Protocol.parseBanner(message.payload);
+                            if (!authorized) {//resumed once the token is signed
+                                resumeTicket = banner.get("resume");
+                                resumeStreams = banner.get("streams");
+                            }
                             token = Protocol.generateToken(20);
                             reply(Protocol.generateMessage(Protocol.A_AUTH, Protocol.AUTH_TOKEN, 0, token));
                             break;
@@ -167,7 +501,7 @@ class Connection {
                             }
                             String payload = AdbHelper.replyToString(message.payload).trim();
                             if (isKeyAuthorised(localId, remoteId, payload) && isAllowed(localId, remoteId, payload)) {
-                                Service service = new Service(localId, remoteId, this, serial, maxLoad);
+                                Service service = new Service(localId, remoteId, this, serial, maxLoad, server.isSyncCoalescing());
                                 services.put(remoteId, service);
                                 service.handle(message);
                             }
@@ -191,12 +525,12 @@ class Connection {
                             break;
                     }
                 } else {
-                    LOGGER.error("{} adb client {}: disconnected", serial, client.getRemoteSocketAddress());
-                    server.removeClient(this);
+                    LOGGER.error("{} adb client {}: disconnected", serial, socket.getRemoteSocketAddress());
+                    lost(socket, "disconnected");
                 }
             } catch (IOException e) {
-                LOGGER.error("{} adb client {}: message error: {}", serial, client.getRemoteSocketAddress(), e);
-                server.removeClient(this);
+                LOGGER.error("{} adb client {}: message error: {}", serial, socket.getRemoteSocketAddress(), e);
+                lost(socket, "message error");
             }
         }
     }
@@ -0,0 +1,70 @@
+package io.github.syncxplus.tcpusb;
+
+/**
+ * Resource accounting of one client connection at the time it was described
+ */
+public final class ConnectionInfo {
+    private final int id;
+    private final String remote;
+    private final boolean authorized;
+    private final long age;
+    private final long idle;
+    private final int services;
+    private final int waitingServices;
+    private final long bufferedBytes;
+
+    ConnectionInfo(int id, String remote, boolean authorized, long age, long idle, int services, int waitingServices, long bufferedBytes) {
+        this.id = id;
+        this.remote = remote;
+        this.authorized = authorized;
+        this.age = age;
+        this.idle = idle;
+        this.services = services;
+        this.waitingServices = waitingServices;
+        this.bufferedBytes = bufferedBytes;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getRemote() {
+        return remote;
+    }
+
+    public boolean isAuthorized() {
+        return authorized;
+    }
+
+    /**
+     * @return ms since the client connected
+     */
+    public long getAge() {
+        return age;
+    }
+
+    /**
+     * @return ms since the last packet from the client
+     */
+    public long getIdle() {
+        return idle;
+    }
+
+    public int getServices() {
+        return services;
+    }
+
+    /**
+     * @return services holding an A_WRTE until the client acks it
+     */
+    public int getWaitingServices() {
+        return waitingServices;
+    }
+
+    /**
+     * @return relay buffers plus device bytes not read yet
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+}
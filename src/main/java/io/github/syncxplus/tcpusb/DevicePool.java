@@ -0,0 +1,303 @@
+package io.github.syncxplus.tcpusb;
+
+import io.micrometer.core.instrument.Meter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A port standing for all devices with one property value, <code>NAME PORT PROPERTY=VALUE</code>
+ * such as <code>pixel4 9000 ro.product.model=Pixel 4</code>. A client connecting to it is given to
+ * the least loaded running device that matches, by connections, then services, then bytes relayed
+ * lately, and stays on it for the session. A device holding <code>capacity</code> connections is
+ * busy: when all are, clients wait in line up to the queue timeout. A client host reconnecting
+ * within the sticky time gets its previous device back if it holds no more connections than the
+ * least loaded one, so that the clients of one host still spread when a device takes several of
+ * them. Clients authenticate with
+ * <code>shell:auth NAME</code>.
+ */
+public class DevicePool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DevicePool.class);
+    private static final long DISPATCH_INTERVAL = 100;
+    private static final Map<Integer, DevicePool> pools = new ConcurrentHashMap<>();
+    private static volatile int capacity = 1;
+    private static volatile long queueTimeout;
+    private static volatile long sticky;
+    private final String name;
+    private final int port;
+    private final String property;
+    private final String value;
+    private final Deque<Waiting> queue = new ArrayDeque<>();
+    private final Map<InetAddress, Assignment> assignments = new ConcurrentHashMap<>();
+    private final List<Meter> meters;
+    private volatile boolean running;
+    private ServerSocket server;
+
+    /**
+     * @param listeners <code>NAME PORT PROPERTY=VALUE</code>
+     * @param capacity connections of a device before it is busy
+     * @param queueTimeout s a client waits for a device
+     * @param sticky s a client host keeps its device between connections, 0 to disable
+     */
+    public static synchronized void configure(List<String> listeners, int capacity, int queueTimeout, int sticky) {
+        for (DevicePool pool : pools.values()) {
+            pool.stop();
+        }
+        pools.clear();
+        DevicePool.capacity = Math.max(1, capacity);
+        DevicePool.queueTimeout = TimeUnit.SECONDS.toNanos(queueTimeout);
+        DevicePool.sticky = TimeUnit.SECONDS.toNanos(sticky);
+        for (String listener : listeners) {
+            String[] fields = listener.trim().split("\\s+", 3);
+            int equal = fields.length == 3 ? fields[2].indexOf('=') : -1;
+            if (equal <= 0) {
+                LOGGER.error("pool listener ignored, NAME PORT PROPERTY=VALUE expected: {}", listener);
+                continue;
+            }
+            int port;
+            try {
+                port = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            if (port <= 0 || port > 65535) {
+                LOGGER.error("pool listener ignored, invalid port: {}", listener);
+                continue;
+            }
+            DevicePool pool = new DevicePool(fields[0], port, fields[2].substring(0, equal), fields[2].substring(equal + 1));
+            pools.put(pool.port, pool);
+            pool.start();
+        }
+    }
+
+    private DevicePool(String name, int port, String property, String value) {
+        this.name = name;
+        this.port = port;
+        this.property = property;
+        this.value = value;
+        this.meters = ProxyMetrics.poolGauges(this, name);
+    }
+
+    private void start() {
+        running = true;
+        try {
+            server = new ServerSocket(port);
+            LOGGER.info("pool {} on port {} for {}={}, {} connections per device", name, port, property, value, capacity);
+        } catch (IOException e) {
+            LOGGER.warn("pool {} on port {} start error", name, port, e);
+            return;
+        }
+        Thread acceptor = new Thread(this::accept, "pool-" + name);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread dispatcher = new Thread(this::dispatchLoop, "pool-" + name + "-dispatch");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    private void stop() {
+        running = false;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            //do nothing
+        }
+        synchronized (queue) {
+            for (Waiting waiting : queue) {
+                close(waiting.client);
+            }
+            queue.clear();
+            queue.notifyAll();
+        }
+        ProxyMetrics.remove(meters);
+    }
+
+    private void accept() {
+        while (running && !server.isClosed()) {
+            try {
+                Socket client = server.accept();
+                LOGGER.debug("pool {} new client {}", name, client.getRemoteSocketAddress());
+                synchronized (queue) {
+                    queue.add(new Waiting(client));
+                    queue.notifyAll();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    LOGGER.warn("pool {} on port {} error", name, port);
+                }
+            }
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            try {
+                synchronized (queue) {
+                    dispatch();
+                    queue.wait(DISPATCH_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LOGGER.warn("pool {} dispatch error", name, e);
+            }
+        }
+    }
+
+    /**
+     * Give the clients in line their devices, first come first served, and drop those waiting too long
+     */
+    private void dispatch() {
+        long now = System.nanoTime();
+        Iterator<Waiting> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Waiting waiting = iterator.next();
+            if (waiting.client.isClosed()) {
+                iterator.remove();
+                continue;
+            }
+            Server device = select(waiting.client.getInetAddress());
+            if (device == null) {
+                break;
+            }
+            iterator.remove();
+            ProxyMetrics.poolAssigned(name, now - waiting.since);
+            assignments.put(waiting.client.getInetAddress(), new Assignment(device.getSerial(), now));
+            LOGGER.info("pool {} client {} on {} after {} ms", name, waiting.client.getRemoteSocketAddress(), device.getSerial(),
+                    TimeUnit.NANOSECONDS.toMillis(now - waiting.since));
+            device.accept(waiting.client, name);
+        }
+        for (iterator = queue.iterator(); iterator.hasNext(); ) {
+            Waiting waiting = iterator.next();
+            if (queueTimeout > 0 && now - waiting.since > queueTimeout) {
+                iterator.remove();
+                ProxyMetrics.poolTimeout(name);
+                LOGGER.info("pool {} client {} gave up, every device busy", name, waiting.client.getRemoteSocketAddress());
+                close(waiting.client);
+            }
+        }
+    }
+
+    /**
+     * @return the previous device of the host if it has as few connections as the least loaded free
+     * one, else the least loaded free one, null if all are busy
+     */
+    private Server select(InetAddress host) {
+        Assignment previous = assignments.get(host);
+        boolean stick = previous != null && sticky > 0 && System.nanoTime() - previous.time < sticky;
+        Server least = null;
+        Server sticking = null;
+        for (Server server : getDevices()) {
+            if (server.getConnectionCount() >= capacity) {
+                continue;
+            }
+            if (stick && server.getSerial().equals(previous.serial)) {
+                sticking = server;
+            }
+            if (least == null || compareLoad(server, least) < 0) {
+                least = server;
+            }
+        }
+        if (sticking != null && sticking.getConnectionCount() <= least.getConnectionCount()) {
+            return sticking;
+        }
+        return least;
+    }
+
+    private static int compareLoad(Server a, Server b) {
+        int compare = Integer.compare(a.getConnectionCount(), b.getConnectionCount());
+        if (compare == 0) {
+            compare = Integer.compare(a.getServiceCount(), b.getServiceCount());
+        }
+        if (compare == 0) {
+            compare = Double.compare(a.getRecentBytes(), b.getRecentBytes());
+        }
+        return compare;
+    }
+
+    /**
+     * @return the running devices matching the property
+     */
+    List<Server> getDevices() {
+        List<Server> devices = new ArrayList<>();
+        for (Server server : Server.getInstances()) {
+            if (server.isRunning() && value.equals(server.getProperty(property))) {
+                devices.add(server);
+            }
+        }
+        return devices;
+    }
+
+    int getBusyCount() {
+        int busy = 0;
+        for (Server server : getDevices()) {
+            if (server.getConnectionCount() >= capacity) {
+                busy++;
+            }
+        }
+        return busy;
+    }
+
+    double getUtilization() {
+        List<Server> devices = getDevices();
+        if (devices.isEmpty()) {
+            return 0;
+        }
+        int connections = 0;
+        for (Server server : devices) {
+            connections += Math.min(capacity, server.getConnectionCount());
+        }
+        return (double) connections / (devices.size() * capacity);
+    }
+
+    int getQueued() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    static DevicePool get(int port) {
+        return pools.get(port);
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //do nothing
+        }
+    }
+
+    private static final class Waiting {
+        private final Socket client;
+        private final long since = System.nanoTime();
+
+        Waiting(Socket client) {
+            this.client = client;
+        }
+    }
+
+    private static final class Assignment {
+        private final String serial;
+        private final long time;
+
+        Assignment(String serial, long time) {
+            this.serial = serial;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.syncxplus.tcpusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes client connections without services silent for longer than the connection timeout, and
+ * services without traffic either way for longer than the service timeout, with their threads,
+ * sockets and the device side service. A connection with a service open is left alone, a quiet
+ * command such as <code>am instrument -w</code> may run for hours. With a keepalive interval,
+ * SO_KEEPALIVE is set on client sockets and silent clients are probed, so that one gone without a
+ * FIN is removed once TCP gives up on it.
+ */
+public class IdleReaper {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdleReaper.class);
+    private static final long INTERVAL = 1;
+    private static volatile long connectionTimeout;
+    private static volatile long serviceTimeout;
+    private static volatile long keepalive;
+    private static ScheduledExecutorService executor;
+
+    /**
+     * @param connectionTimeout s, 0 to keep silent connections without services
+     * @param serviceTimeout s, 0 to keep idle services
+     * @param keepalive s between probes of a silent client, 0 to disable
+     */
+    public static synchronized void configure(int connectionTimeout, int serviceTimeout, int keepalive) {
+        IdleReaper.connectionTimeout = TimeUnit.SECONDS.toNanos(connectionTimeout);
+        IdleReaper.serviceTimeout = TimeUnit.SECONDS.toNanos(serviceTimeout);
+        IdleReaper.keepalive = TimeUnit.SECONDS.toNanos(keepalive);
+        if (connectionTimeout > 0 || serviceTimeout > 0 || keepalive > 0) {
+            LOGGER.info("idle connections reaped after {} s, services after {} s, keepalive {} s", connectionTimeout, serviceTimeout, keepalive);
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "idle-reaper");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                executor.scheduleWithFixedDelay(IdleReaper::reap, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+            }
+        } else if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    static boolean isKeepAlive() {
+        return keepalive > 0;
+    }
+
+    private static void reap() {
+        try {
+            for (Server server : Server.getInstances()) {
+                for (Connection connection : server.getConnections()) {
+                    long idle = connection.getIdleNanos();
+                    if (connectionTimeout > 0 && idle > connectionTimeout && connection.getServiceCount() == 0) {
+                        connection.reap("idle " + TimeUnit.NANOSECONDS.toSeconds(idle) + " s");
+                        continue;
+                    }
+                    if (keepalive > 0) {
+                        connection.probe(keepalive);
+                    }
+                    if (serviceTimeout > 0) {
+                        connection.reapIdleServices(serviceTimeout);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("idle reaper error", e);
+        }
+    }
+}
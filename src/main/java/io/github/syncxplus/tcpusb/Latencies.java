@@ -0,0 +1,54 @@
+package io.github.syncxplus.tcpusb;
+
+import java.util.Arrays;
+
+/**
+ * Latency samples in ns of a replay or load run, reported as percentiles
+ */
+class Latencies {
+    private long[] samples = new long[1024];
+    private int count;
+
+    synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    synchronized void addAll(Latencies other) {
+        long[] copy;
+        int length;
+        synchronized (other) {
+            copy = other.samples;
+            length = other.count;
+        }
+        for (int i = 0; i < length; i++) {
+            record(copy[i]);
+        }
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the sample at the percentile in ns, 0 if there is none
+     */
+    synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(samples, 0, count);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return samples[Math.min(Math.max(index, 0), count - 1)];
+    }
+
+    /**
+     * @return "p50/p99/max" in ms
+     */
+    String summary() {
+        return String.format("%.2f/%.2f/%.2f ms (%d samples)", percentile(50) / 1e6, percentile(99) / 1e6, percentile(100) / 1e6, count());
+    }
+}
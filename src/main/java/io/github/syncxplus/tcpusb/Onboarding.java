@@ -0,0 +1,291 @@
+package io.github.syncxplus.tcpusb;
+
+import com.android.ddmlib.IDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Device callbacks turned into listening {@link Server}s off the callback thread, so that a hub
+ * powering on or an adb server restart does not onboard its devices one by one. Callbacks are
+ * queued per serial and coalesced, only the last state of a serial is applied, and at most
+ * <code>parallel</code> devices are set up at once: the port is bound, from a reserved range with
+ * the previous port of the serial kept when it is free, then the properties are prefetched. A port
+ * something else held at bind time is skipped until the end of the burst, then tried again. The
+ * time from the first callback to a usable device is recorded, and each burst is reported once
+ * the queue is empty.
+ */
+public class Onboarding {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Onboarding.class);
+    private static final int BIND_ATTEMPTS = 8;
+    private static final String DEFAULT_RANGE = "8081-8580";
+    private static final Object lock = new Object();
+    private static final Map<String, Event> pending = new LinkedHashMap<>();
+    private static final Set<String> working = new HashSet<>();
+    private static final Map<String, Integer> ports = new HashMap<>();
+    private static final Map<String, Integer> held = new HashMap<>();
+    private static final BitSet used = new BitSet();
+    private static final BitSet taken = new BitSet();
+    private static final AtomicInteger coalesced = new AtomicInteger();
+    private static int firstPort;
+    private static int lastPort;
+    private static boolean syncCoalescing;
+    private static ExecutorService executor;
+    private static Latencies burst;
+    private static long burstStart;
+    private static volatile String lastBurst;
+
+    /**
+     * @param range ports of the devices, <code>FIRST-LAST</code>, the default one if it is invalid
+     * @param parallel devices set up at once
+     */
+    public static void configure(String range, int parallel, boolean syncCoalescing) {
+        int[] bounds = parseRange(range);
+        if (bounds == null) {
+            LOGGER.error("onboard ports {} invalid, {} used", range, DEFAULT_RANGE);
+            bounds = parseRange(DEFAULT_RANGE);
+        }
+        synchronized (lock) {
+            firstPort = bounds[0];
+            lastPort = bounds[1];
+            Onboarding.syncCoalescing = syncCoalescing;
+            used.clear();
+            taken.clear();
+            ports.clear();
+            held.clear();
+            if (executor != null) {
+                executor.shutdown();
+            }
+            AtomicInteger threads = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, parallel), r -> {
+                Thread thread = new Thread(r, "onboarding-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        LOGGER.info("devices on ports {}-{}, {} set up at once", firstPort, lastPort, parallel);
+    }
+
+    /**
+     * @return first and last port, null if the range is not <code>FIRST-LAST</code> of valid ports
+     */
+    static int[] parseRange(String range) {
+        String[] bounds = range == null ? new String[0] : range.split("-", -1);
+        if (bounds.length < 1 || bounds.length > 2) {
+            return null;
+        }
+        try {
+            int first = Integer.parseInt(bounds[0].trim());
+            int last = Integer.parseInt(bounds[bounds.length - 1].trim());
+            return first > 0 && first <= last && last <= 65535 ? new int[] {first, last} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static void connected(IDevice device) {
+        submit(device, true);
+    }
+
+    public static void disconnected(IDevice device) {
+        submit(device, false);
+    }
+
+    private static void submit(IDevice device, boolean connected) {
+        String serial = device.getSerialNumber();
+        synchronized (lock) {
+            if (burst == null) {
+                burst = new Latencies();
+                burstStart = System.nanoTime();
+            }
+            Event previous = pending.put(serial, new Event(device, connected, pending.containsKey(serial) ? pending.get(serial).since : System.nanoTime()));
+            if (previous != null) {
+                coalesced.incrementAndGet();
+                ProxyMetrics.onboardCoalesced();
+            }
+            if (working.add(serial)) {
+                executor.execute(() -> drain(serial));
+            }
+        }
+    }
+
+    /**
+     * Apply the events of one serial until there is none left, so that a serial is set up by one
+     * worker at a time
+     */
+    private static void drain(String serial) {
+        while (true) {
+            Event event;
+            synchronized (lock) {
+                event = pending.remove(serial);
+                if (event == null) {
+                    working.remove(serial);
+                    if (working.isEmpty()) {
+                        endBurst();
+                    }
+                    return;
+                }
+            }
+            try {
+                if (event.connected) {
+                    add(event);
+                } else {
+                    remove(serial);
+                }
+            } catch (Exception e) {
+                LOGGER.warn("{} onboarding error", serial, e);
+            }
+        }
+    }
+
+    private static void add(Event event) {
+        IDevice device = event.device;
+        String serial = device.getSerialNumber();
+        Server server = Server.getInstance(device);
+        server.stop();
+        if (server.getDevice() != device) {//reconnected, the old device object is offline
+            Server.removeInstance(serial);
+            server = Server.getInstance(device);
+        }
+        release(serial);
+        server.setKey(serial);
+        server.setSyncCoalescing(syncCoalescing);
+        IOException error = null;
+        for (int attempt = 0; attempt < BIND_ATTEMPTS; attempt++) {
+            int port = reserve(serial);
+            if (port < 0) {
+                break;
+            }
+            server.setPort(port);
+            try {
+                server.listen();
+                error = null;
+                break;
+            } catch (IOException e) {
+                error = e;
+                LOGGER.info("{} port {} taken, trying another", serial, port);
+                synchronized (lock) {
+                    ports.remove(serial);
+                    held.remove(serial);
+                    taken.set(port - firstPort);//kept marked used for the burst, something else holds it
+                }
+            }
+        }
+        if (!server.isRunning()) {
+            LOGGER.error("{} no port left in {}-{}", serial, firstPort, lastPort, error);
+            return;
+        }
+        if (!device.arePropertiesSet()) {
+            device.getProperty("ro.product.model");//queries the whole property cache, waits for it up to 2 s
+        }
+        long usable = System.nanoTime() - event.since;
+        ProxyMetrics.onboarded(usable);
+        synchronized (lock) {
+            if (burst != null) {
+                burst.record(usable);
+            }
+        }
+        LOGGER.debug("{} usable in {} ms", serial, TimeUnit.NANOSECONDS.toMillis(usable));
+    }
+
+    private static void remove(String serial) {
+        Server server = Server.removeInstance(serial);
+        if (server != null) {
+            server.stop();
+        }
+        release(serial);
+    }
+
+    /**
+     * Free the port the serial holds, if any: its previous port is kept in {@link #ports} to be
+     * reserved again, but may be held by another serial by then
+     */
+    private static void release(String serial) {
+        synchronized (lock) {
+            Integer port = held.remove(serial);
+            if (port != null) {
+                used.clear(port - firstPort);
+            }
+        }
+    }
+
+    /**
+     * @return the previous port of the serial if it is free, else the lowest free one, -1 if none
+     */
+    private static int reserve(String serial) {
+        synchronized (lock) {
+            Integer previous = ports.get(serial);
+            if (previous != null && previous >= firstPort && previous <= lastPort && !used.get(previous - firstPort)) {
+                used.set(previous - firstPort);
+                held.put(serial, previous);
+                return previous;
+            }
+            int index = used.nextClearBit(0);
+            if (index > lastPort - firstPort) {
+                return -1;
+            }
+            used.set(index);
+            ports.put(serial, firstPort + index);
+            held.put(serial, firstPort + index);
+            return firstPort + index;
+        }
+    }
+
+    private static void endBurst() {
+        if (burst != null && burst.count() > 0) {
+            lastBurst = String.format("%d devices usable in %d ms, each after %s, %d callbacks coalesced",
+                    burst.count(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - burstStart), burst.summary(), coalesced.get());
+            LOGGER.info("onboarding burst: {}", lastBurst);
+        }
+        burst = null;
+        coalesced.set(0);
+        used.andNot(taken);
+        taken.clear();
+    }
+
+    /**
+     * @return whether the queue emptied within the timeout
+     */
+    static boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (System.nanoTime() < deadline) {
+            synchronized (lock) {
+                if (working.isEmpty()) {
+                    return true;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * @return the report of the last burst, null before the first one
+     */
+    static String getLastBurst() {
+        return lastBurst;
+    }
+
+    private static final class Event {
+        private final IDevice device;
+        private final boolean connected;
+        private final long since;
+
+        Event(IDevice device, boolean connected, long since) {
+            this.device = device;
+            this.connected = connected;
+            this.since = since;
+        }
+    }
+}
@@ -10,6 +10,8 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 
 class Protocol {
@@ -38,12 +40,41 @@ class Protocol {
         return new String(packet.array(), StandardCharsets.UTF_8);
     }
 
-    static byte[] generateConnect(IDevice device) {
+    static int getCommand(byte[] message) {
+        return ByteBuffer.wrap(message, 0, COMMAND_LENGTH).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    /**
+     * @param features <code>key=value</code> appended to the banner
+     */
+    static byte[] generateConnect(IDevice device, String... features) {
         String productName = device.getProperty("ro.product.device");
         String productModel = device.getProperty("ro.product.model");
         String deviceName = device.getProperty("ro.product.manufacturer");
-        String deviceIdStr = "device::ro.product.name=" + productName + ";ro.product.model=" + productModel + ";ro.product.device=" + deviceName + "\0";
-        return generateMessage(A_CNXN, VERSION, MAXDATA, deviceIdStr.getBytes());
+        StringBuilder deviceIdStr = new StringBuilder("device::ro.product.name=" + productName + ";ro.product.model=" + productModel + ";ro.product.device=" + deviceName);
+        for (String feature : features) {
+            deviceIdStr.append(';').append(feature);
+        }
+        deviceIdStr.append('\0');
+        return generateMessage(A_CNXN, VERSION, MAXDATA, deviceIdStr.toString().getBytes());
+    }
+
+    /**
+     * @return the <code>key=value</code> pairs after the "::" of a CNXN banner
+     */
+    static Map<String, String> parseBanner(byte[] payload) {
+        Map<String, String> banner = new HashMap<>();
+        if (payload != null) {
+            String text = AdbHelper.replyToString(payload).trim();
+            int start = text.indexOf("::");
+            for (String pair : text.substring(start < 0 ? 0 : start + 2).split(";")) {
+                int equal = pair.indexOf('=');
+                if (equal > 0) {
+                    banner.put(pair.substring(0, equal), pair.substring(equal + 1).replace("\0", ""));
+                }
+            }
+        }
+        return banner;
     }
 
     static byte[] generateToken(int length){
@@ -64,6 +95,10 @@ class Protocol {
         return generateMessage(A_WRTE, localId, remoteId, data);
     }
 
+    static byte[] generateWrite(int localId, int remoteId, byte[] data, int length) {
+        return generateMessage(A_WRTE, localId, remoteId, data, 0, length, true);
+    }
+
     static byte[] generateClose(int localId, int remoteId) {
         return generateMessage(A_CLSE, localId, remoteId, null);
     }
@@ -76,9 +111,10 @@ class Protocol {
         return generateMessage(A_SYNC, 1, sycnToken, null);
     }
 
-    private static int getPayloadChecksum(byte[] payload) {
+    static int getPayloadChecksum(byte[] payload, int offset, int length) {
         int checksum = 0;
-        for (byte b : payload) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = payload[i];
             if (b >= 0) {
                 checksum += b;
             }
@@ -94,11 +130,13 @@ class Protocol {
         if (msg.command != (msg.magic ^ 0xFFFFFFFF)) {
             return false;
         }
-        return msg.payloadLength == 0 || getPayloadChecksum(msg.payload) == msg.checksum;
+        return msg.payloadLength == 0 || getPayloadChecksum(msg.payload, 0, msg.payloadLength) == msg.checksum;
     }
 
-    private static void dumpMessage(int command, int arg0, int arg1, byte[] payload) {
-        int payloadLength =  (payload == null) ? 0 : payload.length;
+    private static void dumpMessage(int command, int arg0, int arg1, byte[] payload, int payloadLength) {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
         StringBuilder sb = new StringBuilder(String.format("[%dbytes]", payloadLength));
         switch (command) {
             case A_CNXN:
@@ -109,7 +147,7 @@ class Protocol {
     }
 
     private static void dumpMessage(AdbMessage message) {
-        dumpMessage(message.command, message.arg0, message.arg1, message.payload);
+        dumpMessage(message.command, message.arg0, message.arg1, message.payload, message.payloadLength);
     }
 
     /**
@@ -129,34 +167,38 @@ class Protocol {
      * @return Byte array containing the message
      */
     static byte[] generateMessage(int cmd, int arg0, int arg1, byte[] payload) {
-        dumpMessage(cmd, arg0, arg1, payload);
+        return generateMessage(cmd, arg0, arg1, payload, 0, payload != null ? payload.length : 0, true);
+    }
+
+    /**
+     * Same as {@link #generateMessage(int, int, int, byte[])} for <code>length</code> bytes of <code>payload</code>
+     * from <code>offset</code>, so a relay can frame its read buffer without copying it first.
+     * @param checksum false to leave data_check 0, which peers of version 0x01000001 and later don't verify
+     */
+    static byte[] generateMessage(int cmd, int arg0, int arg1, byte[] payload, int offset, int length, boolean checksum) {
+        ProxyEvents.Encode event = new ProxyEvents.Encode();
+        event.begin();
+        dumpMessage(cmd, arg0, arg1, payload, length);
+
+        ByteBuffer message = ByteBuffer.allocate(HEADER_LENGTH + length).order(ByteOrder.LITTLE_ENDIAN);
 
-        ByteBuffer message;
-        
-        if (payload != null) {
-            message = ByteBuffer.allocate(HEADER_LENGTH + payload.length).order(ByteOrder.LITTLE_ENDIAN);
-        } else {
-            message = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
-        }
-        
         message.putInt(cmd);
         message.putInt(arg0);
         message.putInt(arg1);
-
-        if (payload != null) {
-            message.putInt(payload.length);
-            message.putInt(getPayloadChecksum(payload));
-        } else {
-            message.putInt(0);
-            message.putInt(0);
-        }
-        
+        message.putInt(length);
+        message.putInt(checksum && length > 0 ? getPayloadChecksum(payload, offset, length) : 0);
         message.putInt(cmd ^ 0xFFFFFFFF);
-        
-        if (payload != null) {
-            message.put(payload);
+
+        if (length > 0) {
+            message.put(payload, offset, length);
         }
 
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = getCommandString(cmd);
+            event.size = message.capacity();
+            event.commit();
+        }
         return message.array();
     }
 
@@ -184,6 +226,8 @@ class Protocol {
                 }
             } while (dataRead < HEADER_LENGTH);
 
+            ProxyEvents.Decode event = new ProxyEvents.Decode();
+            event.begin();
             msg.command = packet.getInt();
             msg.arg0 = packet.getInt();
             msg.arg1 = packet.getInt();
@@ -207,6 +251,12 @@ class Protocol {
 
             dumpMessage(msg);
 
+            event.end();
+            if (event.shouldCommit()) {
+                event.command = getCommandString(msg.command);
+                event.size = HEADER_LENGTH + msg.payloadLength;
+                event.commit();
+            }
             return msg;
         }
     }
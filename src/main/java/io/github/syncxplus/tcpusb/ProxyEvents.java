@@ -0,0 +1,121 @@
+package io.github.syncxplus.tcpusb;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events of the proxy hot paths, enabled by <code>tcpusb.jfc</code>.
+ * An event is only filled in after {@link Event#shouldCommit()}, so a disabled event costs
+ * an allocation the JIT can eliminate and two timestamps at most.
+ */
+final class ProxyEvents {
+    static final String PREFIX = "io.github.syncxplus.tcpusb.";
+
+    private ProxyEvents() {
+    }
+
+    @Name(PREFIX + "Decode")
+    @Label("ADB Message Decode")
+    @Description("Read and parse of an ADB message after its header arrived")
+    @Category({"tcpusb", "Protocol"})
+    @StackTrace(false)
+    static final class Decode extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name(PREFIX + "Encode")
+    @Label("ADB Message Encode")
+    @Category({"tcpusb", "Protocol"})
+    @StackTrace(false)
+    static final class Encode extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name(PREFIX + "Open")
+    @Label("Service Open Phase")
+    @Description("connect: socket to the adb server, transport: host:transport reply, service: service reply")
+    @Category({"tcpusb", "Service"})
+    @StackTrace(false)
+    static final class Open extends Event {
+        @Label("Serial")
+        String serial;
+
+        @Label("Local Id")
+        int localId;
+
+        @Label("Remote Id")
+        int remoteId;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Service")
+        String service;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name(PREFIX + "Ack")
+    @Label("Ack Wait")
+    @Description("Time from relaying an A_WRTE to the client until its A_OKAY")
+    @Category({"tcpusb", "Service"})
+    @StackTrace(false)
+    static final class Ack extends Event {
+        @Label("Serial")
+        String serial;
+
+        @Label("Local Id")
+        int localId;
+
+        @Label("Remote Id")
+        int remoteId;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name(PREFIX + "Verify")
+    @Label("RSA Key Verify")
+    @Category({"tcpusb", "Auth"})
+    @StackTrace(false)
+    static final class Verify extends Event {
+        @Label("Serial")
+        String serial;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name(PREFIX + "Reply")
+    @Label("Blocked Reply")
+    @Description("Write of a message to the client socket, recorded above the configured threshold")
+    @Category({"tcpusb", "Connection"})
+    static final class Reply extends Event {
+        @Label("Serial")
+        String serial;
+
+        @Label("Command")
+        String command;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+}
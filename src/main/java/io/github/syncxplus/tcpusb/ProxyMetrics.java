@@ -0,0 +1,243 @@
+package io.github.syncxplus.tcpusb;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer meters of the proxy, registered in {@link Metrics#globalRegistry} which the actuator
+ * exports on <code>/prometheus</code>. Tags are limited to the device serial, a fixed set of
+ * service classes, the packet command and the direction to keep cardinality bounded.
+ */
+final class ProxyMetrics {
+    private static final MeterRegistry REGISTRY = Metrics.globalRegistry;
+    private static final int[] COMMANDS = {
+            Protocol.A_SYNC, Protocol.A_CNXN, Protocol.A_AUTH, Protocol.A_OPEN,
+            Protocol.A_OKAY, Protocol.A_CLSE, Protocol.A_WRTE
+    };
+    private static final Set<String> SERVICE_CLASSES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "shell", "exec", "sync", "tcp", "local", "localabstract", "localreserved", "localfilesystem", "dev",
+            "framebuffer", "jdwp", "track-jdwp", "reverse", "reboot", "remount", "root", "unroot", "usb",
+            "backup", "restore", "install-multiple", "abb", "abb_exec"
+    )));
+    static final String IN = "in";
+    static final String OUT = "out";
+
+    private ProxyMetrics() {
+    }
+
+    /**
+     * @return the service name before the first ':' or ',', or "other" if it is not a known adb service
+     */
+    static String serviceClass(String service) {
+        int end = service.length();
+        for (int i = 0; i < service.length(); i++) {
+            char c = service.charAt(i);
+            if (c == ':' || c == ',') {
+                end = i;
+                break;
+            }
+        }
+        String name = service.substring(0, end);
+        return SERVICE_CLASSES.contains(name) ? name : "other";
+    }
+
+    static void authFailure(String serial, String reason) {
+        REGISTRY.counter("tcpusb.auth.failures", "serial", serial, "reason", reason).increment();
+    }
+
+    static void rejected(String serial, String reason) {
+        REGISTRY.counter("tcpusb.service.rejected", "serial", serial, "reason", reason).increment();
+    }
+
+    static void reaped(String serial, String kind) {
+        REGISTRY.counter("tcpusb.reaped", "serial", serial, "kind", kind).increment();
+    }
+
+    static void resumed(String serial, String result) {
+        REGISTRY.counter("tcpusb.resume", "serial", serial, "result", result).increment();
+    }
+
+    static void screen(String serial, String result) {
+        REGISTRY.counter("tcpusb.screen.requests", "serial", serial, "result", result).increment();
+    }
+
+    static void screenCacheGauge(AtomicLong cachedBytes) {
+        Gauge.builder("tcpusb.screen.cached", cachedBytes, AtomicLong::get)
+                .description("frames held by the screen cache of all devices")
+                .baseUnit("bytes")
+                .register(REGISTRY);
+    }
+
+    static <T> Meter shardGauge(String shard, T owner, ToDoubleFunction<T> devices) {
+        return Gauge.builder("tcpusb.adb.devices", owner, devices)
+                .description("devices owned by the adb server")
+                .tag("shard", shard)
+                .register(REGISTRY);
+    }
+
+    static void opened(String serial, String serviceClass, boolean success, long nanos) {
+        Timer.builder("tcpusb.service.open")
+                .tags("serial", serial, "service", serviceClass, "result", success ? "success" : "failure")
+                .register(REGISTRY)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    static List<Meter> serverGauges(Server server, String serial) {
+        return Arrays.asList(
+                Gauge.builder("tcpusb.connections", server, Server::getConnectionCount)
+                        .tag("serial", serial)
+                        .register(REGISTRY),
+                Gauge.builder("tcpusb.services", server, Server::getServiceCount)
+                        .tag("serial", serial)
+                        .register(REGISTRY),
+                Gauge.builder("tcpusb.relay.waiting", server, Server::getWaitingServiceCount)
+                        .description("services holding an A_WRTE until the client acks it")
+                        .tag("serial", serial)
+                        .register(REGISTRY),
+                Gauge.builder("tcpusb.buffered", server, Server::getBufferedBytes)
+                        .description("relay buffers plus device bytes not read yet")
+                        .baseUnit("bytes")
+                        .tag("serial", serial)
+                        .register(REGISTRY)
+        );
+    }
+
+    static List<Meter> poolGauges(DevicePool pool, String name) {
+        return Arrays.asList(
+                Gauge.builder("tcpusb.pool.devices", pool, p -> p.getDevices().size())
+                        .tag("pool", name)
+                        .register(REGISTRY),
+                Gauge.builder("tcpusb.pool.busy", pool, DevicePool::getBusyCount)
+                        .description("devices of the pool at capacity")
+                        .tag("pool", name)
+                        .register(REGISTRY),
+                Gauge.builder("tcpusb.pool.queued", pool, DevicePool::getQueued)
+                        .description("clients waiting for a device")
+                        .tag("pool", name)
+                        .register(REGISTRY),
+                Gauge.builder("tcpusb.pool.utilization", pool, DevicePool::getUtilization)
+                        .description("connections of the pool over its capacity")
+                        .tag("pool", name)
+                        .register(REGISTRY)
+        );
+    }
+
+    static void poolAssigned(String pool, long waitNanos) {
+        Timer.builder("tcpusb.pool.wait")
+                .description("time a client waited for a device of the pool")
+                .tag("pool", pool)
+                .register(REGISTRY)
+                .record(waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    static void poolTimeout(String pool) {
+        REGISTRY.counter("tcpusb.pool.timeouts", "pool", pool).increment();
+    }
+
+    static void onboarded(long usableNanos) {
+        Timer.builder("tcpusb.onboard.usable")
+                .description("device callback to listening port with properties fetched")
+                .register(REGISTRY)
+                .record(usableNanos, TimeUnit.NANOSECONDS);
+    }
+
+    static void onboardCoalesced() {
+        REGISTRY.counter("tcpusb.onboard.coalesced").increment();
+    }
+
+    static void remove(List<Meter> meters) {
+        for (Meter meter : meters) {
+            REGISTRY.remove(meter);
+        }
+    }
+
+    /**
+     * Packet and byte counters of one client connection, looked up once per connection
+     */
+    static final class Client {
+        private final Counter[] packetsIn = new Counter[COMMANDS.length];
+        private final Counter[] packetsOut = new Counter[COMMANDS.length];
+        private final Counter bytesIn;
+        private final Counter bytesOut;
+
+        Client(String serial) {
+            for (int i = 0; i < COMMANDS.length; i++) {
+                String command = Protocol.getCommandString(COMMANDS[i]);
+                packetsIn[i] = REGISTRY.counter("tcpusb.packets", "serial", serial, "command", command, "direction", IN);
+                packetsOut[i] = REGISTRY.counter("tcpusb.packets", "serial", serial, "command", command, "direction", OUT);
+            }
+            bytesIn = REGISTRY.counter("tcpusb.client.bytes", "serial", serial, "direction", IN);
+            bytesOut = REGISTRY.counter("tcpusb.client.bytes", "serial", serial, "direction", OUT);
+        }
+
+        void received(int command, int size) {
+            count(packetsIn, command);
+            bytesIn.increment(size);
+        }
+
+        void sent(int command, int size) {
+            count(packetsOut, command);
+            bytesOut.increment(size);
+        }
+
+        private static void count(Counter[] counters, int command) {
+            for (int i = 0; i < COMMANDS.length; i++) {
+                if (COMMANDS[i] == command) {
+                    counters[i].increment();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Relay meters of one service, looked up once the service class is known
+     */
+    static final class Relay {
+        private final Counter bytesIn;
+        private final Counter bytesOut;
+        private final Timer ack;
+        private final DistributionSummary backlog;
+
+        Relay(String serial, String serviceClass) {
+            bytesIn = REGISTRY.counter("tcpusb.service.bytes", "serial", serial, "service", serviceClass, "direction", IN);
+            bytesOut = REGISTRY.counter("tcpusb.service.bytes", "serial", serial, "service", serviceClass, "direction", OUT);
+            ack = Timer.builder("tcpusb.service.ack")
+                    .description("A_WRTE to A_OKAY round trip")
+                    .tags("serial", serial, "service", serviceClass)
+                    .register(REGISTRY);
+            backlog = DistributionSummary.builder("tcpusb.relay.backlog")
+                    .description("bytes left queued in the adb server socket after each relay read")
+                    .baseUnit("bytes")
+                    .tags("serial", serial, "service", serviceClass)
+                    .register(REGISTRY);
+        }
+
+        void written(int size) {
+            bytesIn.increment(size);
+        }
+
+        void relayed(int size, int queued) {
+            bytesOut.increment(size);
+            backlog.record(queued);
+        }
+
+        void acked(long nanos) {
+            ack.record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
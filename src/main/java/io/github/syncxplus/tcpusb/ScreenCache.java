@@ -0,0 +1,238 @@
+package io.github.syncxplus.tcpusb;
+
+import com.android.ddmlib.AdbHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Screenshots of one device shared by its viewers. A <code>framebuffer:</code> or
+ * <code>screencap</code> open is answered with the bytes of the last capture of the same service
+ * while it is fresh, joins the capture in progress if there is one, and otherwise starts a capture,
+ * at most <code>rate</code> per second per device: past the rate the last frame is served again.
+ * Frames of all devices share one memory bound, least recently used first out.
+ */
+public class ScreenCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScreenCache.class);
+    private static final Pattern SCREENCAP = Pattern.compile("(shell|exec):screencap(\\s+-(p|d\\s+\\d+))*");
+    private static final int TIMEOUT = 10_000;
+    private static final Map<Entry, Boolean> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private static final AtomicLong cachedBytes = new AtomicLong();
+    private static volatile long freshness;
+    private static volatile long interval;
+    private static volatile long memory;
+    private final String serial;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private long lastCapture;
+
+    static {
+        ProxyMetrics.screenCacheGauge(cachedBytes);
+    }
+
+    ScreenCache(String serial) {
+        this.serial = serial;
+    }
+
+    /**
+     * @param fresh ms a frame is served again, 0 disables the cache
+     * @param rate captures per second per device
+     * @param memoryMb bound of the frames of all devices
+     */
+    public static void configure(long fresh, double rate, int memoryMb) {
+        freshness = TimeUnit.MILLISECONDS.toNanos(fresh);
+        interval = rate > 0 ? (long) (1e9 / rate) : 0;
+        memory = memoryMb * 1024L * 1024L;
+        synchronized (lru) {
+            evict();
+        }
+        if (fresh > 0) {
+            LOGGER.info("screen cache {} ms fresh, {} captures/s per device, {} MB", fresh, rate, memoryMb);
+        }
+    }
+
+    static boolean isCacheable(String service) {
+        return freshness > 0 && ("framebuffer:".equals(service) || SCREENCAP.matcher(service).matches());
+    }
+
+    /**
+     * @return the frame of the service, from the cache or captured through the adb server
+     * @throws IOException if the capture failed, with the adb error as message
+     */
+    byte[] get(String service, InetSocketAddress adbAddress) throws IOException {
+        Entry entry = entries.computeIfAbsent(service, Entry::new);
+        CompletableFuture<byte[]> capture = null;
+        boolean owner = false;
+        String result;
+        byte[] frame;
+        synchronized (entry) {
+            long now = System.nanoTime();
+            frame = entry.frame;
+            if (frame != null && now - entry.time < freshness) {
+                result = "hit";
+            } else if (entry.capture != null) {
+                capture = entry.capture;
+                result = "coalesced";
+            } else if (frame != null && now - getLastCapture() < interval) {
+                result = "throttled";
+            } else {
+                capture = entry.capture = new CompletableFuture<>();
+                owner = true;
+                result = "miss";
+            }
+        }
+        ProxyMetrics.screen(serial, result);
+        if (capture == null) {
+            synchronized (lru) {
+                lru.get(entry);//most recently used
+            }
+            return frame;
+        }
+        if (owner) {
+            try {
+                frame = capture(service, adbAddress);
+                synchronized (entry) {//frame and time together, or a hit could return the previous frame
+                    store(entry, frame);
+                    entry.time = System.nanoTime();
+                    entry.capture = null;
+                }
+                capture.complete(frame);
+            } catch (IOException | RuntimeException e) {
+                synchronized (entry) {
+                    entry.capture = null;
+                }
+                capture.completeExceptionally(e);
+                throw e;
+            }
+            return frame;
+        }
+        try {
+            return capture.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException | TimeoutException e) {
+            throw new IOException("Screen capture not finished", e);
+        }
+    }
+
+    private synchronized long getLastCapture() {
+        return lastCapture;
+    }
+
+    /**
+     * Wait for the rate of the device, then read the service to its end
+     */
+    private byte[] capture(String service, InetSocketAddress adbAddress) throws IOException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long next = lastCapture != 0 ? Math.max(now, lastCapture + interval) : now;
+            wait = next - now;
+            lastCapture = next;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        long start = System.nanoTime();
+        try (Socket socket = new Socket(adbAddress.getAddress(), adbAddress.getPort())) {
+            socket.setSoTimeout(TIMEOUT);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(AdbHelper.formAdbRequest("host:transport:" + serial));
+            AdbHost.checkOkay(in);
+            out.write(AdbHelper.formAdbRequest(service));
+            AdbHost.checkOkay(in);
+            if ("framebuffer:".equals(service)) {
+                out.write(0);//nudge, the pixels follow the header once it is read
+            }
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(1024 * 1024);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                frame.write(buffer, 0, read);
+            }
+            LOGGER.debug("{} {} captured {} bytes in {} ms", serial, service, frame.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return frame.toByteArray();
+        }
+    }
+
+    private static void store(Entry entry, byte[] frame) {
+        synchronized (lru) {
+            byte[] old = entry.frame;
+            if (old != null) {
+                cachedBytes.addAndGet(-old.length);
+            }
+            if (frame.length > memory) {
+                entry.frame = null;
+                lru.remove(entry);
+                return;
+            }
+            entry.frame = frame;
+            cachedBytes.addAndGet(frame.length);
+            lru.put(entry, Boolean.TRUE);
+            evict();
+        }
+    }
+
+    private static void evict() {
+        Iterator<Entry> iterator = lru.keySet().iterator();
+        while (cachedBytes.get() > memory && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            byte[] frame = entry.frame;
+            if (frame != null) {
+                cachedBytes.addAndGet(-frame.length);
+            }
+            entry.frame = null;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drop the frames of the device
+     */
+    void clear() {
+        synchronized (lru) {
+            for (Entry entry : entries.values()) {
+                if (lru.remove(entry) != null && entry.frame != null) {
+                    cachedBytes.addAndGet(-entry.frame.length);
+                }
+                entry.frame = null;
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final String service;
+        private volatile byte[] frame;
+        private long time;
+        private CompletableFuture<byte[]> capture;
+
+        Entry(String service) {
+            this.service = service;
+        }
+
+        @Override
+        public String toString() {
+            return service;
+        }
+    }
+}
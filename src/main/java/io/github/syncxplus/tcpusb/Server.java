@@ -1,45 +1,97 @@
 package io.github.syncxplus.tcpusb;
 
+import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
+import io.micrometer.core.instrument.Meter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Server {
     private final static Logger LOGGER = LoggerFactory.getLogger(Server.class);
     private final static ConcurrentMap<String, Server> instances = new ConcurrentHashMap<>();
-    private final List<Connection> connections = new ArrayList<>();
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
     private final IDevice device;
+    private final List<Meter> meters;
+    private final ScreenCache screenCache;
     private ServerSocket server;
     private boolean running;
     private String key;
     private int port;
+    private boolean syncCoalescing;
+    private InetSocketAddress adbAddress;
+    private final Object recentLock = new Object();
+    private double recentBytes;
+    private long recentTime = System.nanoTime();
 
     public static Server getInstance(IDevice device) {
-        String serial = device.getSerialNumber();
-        if (!instances.containsKey(serial)) {
-            instances.put(serial, new Server(device));
-        }
-        return instances.get(serial);
+        return instances.computeIfAbsent(device.getSerialNumber(), serial -> new Server(device));
     }
 
     public static Server removeInstance(String serial) {
-        return instances.remove(serial);
+        Server server = instances.remove(serial);
+        if (server != null) {
+            ProxyMetrics.remove(server.meters);
+            server.screenCache.clear();
+        }
+        return server;
+    }
+
+    static Collection<Server> getInstances() {
+        return instances.values();
+    }
+
+    /**
+     * @return the connections of every device by serial
+     */
+    public static Map<String, List<ConnectionInfo>> describeConnections() {
+        Map<String, List<ConnectionInfo>> description = new TreeMap<>();
+        for (Server server : instances.values()) {
+            List<ConnectionInfo> infos = new ArrayList<>();
+            for (Connection connection : server.connections) {
+                infos.add(connection.describe());
+            }
+            description.put(server.device.getSerialNumber(), infos);
+        }
+        return description;
     }
 
     public synchronized Server start() {
+        try {
+            listen();
+        } catch (IOException e) {
+            LOGGER.warn("{} adb server on port {} start error", device.getSerialNumber(), port, e);
+        }
+        return this;
+    }
+
+    /**
+     * Bind the port in the calling thread, then accept clients in a new one
+     * @throws IOException if the port can't be bound
+     */
+    synchronized void listen() throws IOException {
         if (!running) {
+            assert port != 0;
+            assert key != null;
+            ServerSocket socket = new ServerSocket(port);
+            server = socket;
             running = true;
-            new Thread(this::createAdbServerThread).start();
+            LOGGER.info("{} adb server on port {} start success", device.getSerialNumber(), port);
+            new Thread(() -> createAdbServerThread(socket)).start();
         }
-        return this;
     }
 
     public synchronized Server stop() {
@@ -59,6 +111,26 @@ public class Server {
         return this;
     }
 
+    synchronized boolean isRunning() {
+        return running;
+    }
+
+    synchronized int getPort() {
+        return port;
+    }
+
+    IDevice getDevice() {
+        return device;
+    }
+
+    String getSerial() {
+        return device.getSerialNumber();
+    }
+
+    String getProperty(String name) {
+        return device.getProperty(name);
+    }
+
     public void setKey(String key) {
         this.key = key;
     }
@@ -67,34 +139,129 @@ public class Server {
         this.port = port;
     }
 
+    public void setSyncCoalescing(boolean syncCoalescing) {
+        this.syncCoalescing = syncCoalescing;
+    }
+
+    boolean isSyncCoalescing() {
+        return syncCoalescing;
+    }
+
+    /**
+     * @param adbAddress adb server the services of this device connect to, null for its {@link AdbShards}
+     *                   owner or else the ddmlib bridge
+     */
+    public void setAdbAddress(InetSocketAddress adbAddress) {
+        this.adbAddress = adbAddress;
+    }
+
+    InetSocketAddress getAdbAddress() {
+        if (adbAddress != null) {
+            return adbAddress;
+        }
+        InetSocketAddress owner = AdbShards.route(device.getSerialNumber());
+        return owner != null ? owner : AndroidDebugBridge.getSocketAddress();
+    }
+
+    ScreenCache getScreenCache() {
+        return screenCache;
+    }
+
+    /**
+     * Called for every relayed packet, on a lock of its own rather than the one of the server lifecycle
+     */
+    void relayed(int count) {
+        synchronized (recentLock) {
+            decay();
+            recentBytes += count;
+        }
+    }
+
+    /**
+     * @return bytes relayed to the clients lately, decayed with a 10 s time constant
+     */
+    double getRecentBytes() {
+        synchronized (recentLock) {
+            decay();
+            return recentBytes;
+        }
+    }
+
+    private void decay() {
+        long now = System.nanoTime();
+        recentBytes *= Math.exp(-(now - recentTime) / 1e10);
+        recentTime = now;
+    }
+
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    int getServiceCount() {
+        int count = 0;
+        for (Connection connection : connections) {
+            count += connection.getServiceCount();
+        }
+        return count;
+    }
+
+    long getBufferedBytes() {
+        long buffered = 0;
+        for (Connection connection : connections) {
+            buffered += connection.getBufferedBytes();
+        }
+        return buffered;
+    }
+
+    List<Connection> getConnections() {
+        return Collections.unmodifiableList(connections);
+    }
+
+    int getWaitingServiceCount() {
+        int count = 0;
+        for (Connection connection : connections) {
+            count += connection.getWaitingServiceCount();
+        }
+        return count;
+    }
+
     private Server(IDevice device){
         this.device = device;
+        this.meters = ProxyMetrics.serverGauges(this, device.getSerialNumber());
+        this.screenCache = new ScreenCache(device.getSerialNumber());
     }
 
-    private void createAdbServerThread() {
-        assert port != 0;
-        assert key != null;
+    private void createAdbServerThread(ServerSocket server) {
         String serial = device.getSerialNumber();
-        try {
-            server = new ServerSocket(port);
-            LOGGER.info("{} adb server on port {} start success", serial, port);
-        } catch (IOException e) {
-            stop();
-            LOGGER.warn("{} adb server on port {} start error", serial, port, e);
-        }
-        while (server != null && !server.isClosed() && running) {
+        int port = server.getLocalPort();
+        while (!server.isClosed() && running) {
             try {
                 Socket client = server.accept();
                 LOGGER.debug("{} new client {}", serial, client.getRemoteSocketAddress());
-                Connection adbConnection = new Connection(device, key, this, client);
-                adbConnection.connect();
-                connections.add(adbConnection);
+                accept(client, key);
             } catch (Exception e) {
                 LOGGER.warn("{} adb server on port {} error", serial, port);
             }
         }
     }
 
+    /**
+     * Serve a client accepted on the port of this device or given to it by a {@link DevicePool}
+     * @param key of <code>shell:auth</code>
+     */
+    void accept(Socket client, String key) {
+        Connection adbConnection = new Connection(device, key, this, client);
+        connections.add(adbConnection);
+        adbConnection.connect();
+    }
+
+    /**
+     * Forget a connection whose socket was taken over by a resumed one
+     */
+    void handOver(Connection c) {
+        connections.remove(c);
+    }
+
     synchronized void removeClient(Connection c) {
         try {
             c.disconnect();
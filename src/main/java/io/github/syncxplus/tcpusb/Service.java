@@ -1,12 +1,13 @@
 package io.github.syncxplus.tcpusb;
 
 import com.android.ddmlib.AdbHelper;
-import com.android.ddmlib.AndroidDebugBridge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.Arrays;
@@ -15,28 +16,95 @@ class Service {
     private final static Logger LOGGER = LoggerFactory.getLogger(Service.class);
     private final static int READ_TIMEOUT = 10;
     private final static int OPEN_TIMEOUT = 500;
+    private final static long SYNC_COALESCE_WINDOW = 50_000_000L;
     private final int localId;
     private final int remoteId;
     private final int maxDataLength;
     private final Connection connection;
     private final String serial;
+    private final boolean syncCoalescing;
+    private final SessionCapture capture;
     private String service;
+    private SyncStream sync;
+    private ProxyMetrics.Relay metrics;
+    private ProxyEvents.Ack ack;
+    private long writeTime;
+    private long readyTime;
+    private volatile long lastActivity = System.nanoTime();
     private Socket adbServer;
+    private volatile InputStream deviceIn;
     private byte[] buff;
+    private int buffLength;
+    private long writes;
+    private volatile long clientWrites;
     private boolean ended;
     private boolean opened;
     private boolean waitAck;
     private final Object lock = new Object();
 
-    Service(int localId, int remoteId, Connection connection, String serial, int maxDataLength) {
+    Service(int localId, int remoteId, Connection connection, String serial, int maxDataLength, boolean syncCoalescing) {
         this.localId = localId;
         this.remoteId = remoteId;
         this.connection = connection;
         this.serial = serial;
         this.maxDataLength = maxDataLength;
+        this.syncCoalescing = syncCoalescing;
+        this.capture = connection.getCapture();
         buff = new byte[maxDataLength];
     }
 
+    boolean isWaitingAck() {
+        return waitAck;
+    }
+
+    /**
+     * @return ns since the last packet from the client or bytes from the device
+     */
+    long getIdleNanos() {
+        return System.nanoTime() - lastActivity;
+    }
+
+    /**
+     * @return the relay buffer plus the device bytes waiting in the adb server socket
+     */
+    long getBufferedBytes() {
+        long buffered = maxDataLength;
+        InputStream in = deviceIn;
+        if (in != null) {
+            try {
+                buffered += in.available();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+        return buffered;
+    }
+
+    /**
+     * @return A_WRTE packets received from the client
+     */
+    long getClientWrites() {
+        return clientWrites;
+    }
+
+    /**
+     * Resync with a resumed client: send the A_WRTE it did not receive again, or take the ack of
+     * the one it received as lost
+     * @param clientReceived A_WRTE packets the client received
+     */
+    void resume(long clientReceived) throws IOException {
+        synchronized (lock) {
+            if (waitAck) {
+                if (writes > clientReceived) {
+                    connection.reply(Protocol.generateWrite(localId, remoteId, buff, buffLength));
+                    writeTime = System.nanoTime();
+                } else {
+                    waitAck = false;
+                }
+            }
+        }
+    }
+
     void close() {
         try {
             if (adbServer != null) {
@@ -54,6 +122,7 @@ class Service {
     }
 
     void handle(Protocol.AdbMessage message) {
+        lastActivity = System.nanoTime();
         try {
             switch (message.command) {
                 case Protocol.A_OPEN:
@@ -78,45 +147,125 @@ class Service {
     }
 
     private void handleOpenPacket(Protocol.AdbMessage message) throws IOException {
-        adbServer = new Socket(AndroidDebugBridge.getSocketAddress().getAddress(), AndroidDebugBridge.getSocketAddress().getPort());
-        adbServer.setTcpNoDelay(true);
-        adbServer.setSoTimeout(READ_TIMEOUT);
-        write(AdbHelper.formAdbRequest("host:transport:" + serial));
-        if (isOkay() && !ended) {
-            service = AdbHelper.replyToString(message.payload).trim();
-            write(AdbHelper.formAdbRequest(service));
-            String reply = readOpenStatus(4);
-            if (reply != null) {
-                if (reply.equals("OKAY")) {//open success
-                    connection.reply(Protocol.generateReady(localId, remoteId));
-                    opened = true;
-                    new Thread(() -> {
-                        try {
-                            int ret = readAndReply();
-                            while (ret != -1) {
-                                synchronized (lock) {
-                                    ret = readAndReply();
-                                }
-                            }
-                        } catch (Exception e) {
-                            //do nothing
+        long start = System.nanoTime();
+        service = AdbHelper.replyToString(message.payload).trim();
+        String serviceClass = ProxyMetrics.serviceClass(service);
+        boolean success = false;
+        metrics = new ProxyMetrics.Relay(serial, serviceClass);
+        try {
+            if (ScreenCache.isCacheable(service)) {
+                startRelay(true);
+                success = true;
+                return;
+            }
+            ProxyEvents.Open phase = new ProxyEvents.Open();
+            phase.begin();
+            InetSocketAddress address = connection.getAdbAddress();
+            adbServer = new Socket(address.getAddress(), address.getPort());
+            adbServer.setTcpNoDelay(true);
+            adbServer.setSoTimeout(READ_TIMEOUT);
+            deviceIn = adbServer.getInputStream();
+            commitOpenPhase(phase, "connect", true);
+            phase = new ProxyEvents.Open();
+            phase.begin();
+            write(AdbHelper.formAdbRequest("host:transport:" + serial));
+            boolean transport = isOkay();
+            commitOpenPhase(phase, "transport", transport);
+            if (transport && !ended) {
+                phase = new ProxyEvents.Open();
+                phase.begin();
+                write(AdbHelper.formAdbRequest(service));
+                String reply = readOpenStatus(4);
+                commitOpenPhase(phase, "service", "OKAY".equals(reply));
+                if (reply != null) {
+                    if (reply.equals("OKAY")) {//open success
+                        if (syncCoalescing && service.startsWith("sync:")) {
+                            sync = new SyncStream(serial);
                         }
-                        LOGGER.debug("{} Ending service {}", serial, service);
-                        connection.removeService(remoteId);
-                    }).start();
-                    return;
-                } else if (reply.equals("FAIL")) {
-                    connection.reply(Protocol.generateWrite(localId, remoteId, readError().getBytes()));
+                        startRelay(false);
+                        success = true;
+                        return;
+                    } else if (reply.equals("FAIL")) {
+                        connection.reply(Protocol.generateWrite(localId, remoteId, readError().getBytes()));
+                    }
                 }
             }
+            LOGGER.error("{} Failed to open service", serial);
+            connection.removeService(remoteId);
+        } finally {
+            ProxyMetrics.opened(serial, serviceClass, success, System.nanoTime() - start);
         }
-        LOGGER.error("{} Failed to open service", serial);
-        connection.removeService(remoteId);
+    }
+
+    /**
+     * Acknowledge the open and relay the device bytes to the client until they end
+     * @param cached the bytes are a frame of the screen cache, fetched first
+     */
+    private void startRelay(boolean cached) throws IOException {
+        connection.reply(Protocol.generateReady(localId, remoteId));
+        readyTime = System.nanoTime();
+        opened = true;
+        new Thread(() -> {
+            try {
+                if (!cached || fetchFrame()) {
+                    int ret;
+                    do {
+                        synchronized (lock) {//the ack of a fast client must not be handled before waitAck is set
+                            ret = readAndReply();
+                        }
+                    } while (ret != -1);
+                    if (capture != null) {
+                        capture.deviceEnd(connection.getId(), remoteId);
+                    }
+                }
+            } catch (Exception e) {
+                //do nothing
+            }
+            LOGGER.debug("{} Ending service {}", serial, service);
+            connection.removeService(remoteId);
+        }).start();
+    }
+
+    /**
+     * Get the frame from the screen cache on the relay thread, so that the rate limit wait, the
+     * capture or the wait for a capture in progress does not hold up the other streams of the client
+     * @return false if the capture failed, its error is sent to the client
+     */
+    private boolean fetchFrame() throws IOException {
+        byte[] frame;
+        try {
+            frame = connection.getScreenCache().get(service, connection.getAdbAddress());
+        } catch (IOException e) {
+            LOGGER.error("{} Screen capture failed: {}", serial, e.getMessage());
+            connection.reply(Protocol.generateWrite(localId, remoteId, String.valueOf(e.getMessage()).getBytes()));
+            return false;
+        }
+        synchronized (lock) {
+            deviceIn = new ByteArrayInputStream(frame);
+        }
+        return true;
     }
 
     private void handleOkayPacket() throws IOException {
         if (!ended) {
             synchronized (lock) {
+                if (ack != null) {
+                    ack.end();
+                    if (ack.shouldCommit()) {
+                        ack.serial = serial;
+                        ack.localId = localId;
+                        ack.remoteId = remoteId;
+                        ack.commit();
+                    }
+                    ack = null;
+                }
+                if (waitAck) {
+                    long rtt = System.nanoTime() - writeTime;
+                    metrics.acked(rtt);
+                    if (sync != null) {
+                        sync.addLinkTime(rtt);
+                    }
+                }
                 waitAck = false;
                 readAndReply();
             }
@@ -125,10 +274,21 @@ class Service {
 
     private void handleWritePacket(Protocol.AdbMessage message) throws  IOException {
         if (!ended) {
+            clientWrites++;
             if (message.payloadLength > 0) {
-                write(message.payload);
+                metrics.written(message.payloadLength);
+                if (sync != null) {
+                    long start = System.nanoTime();
+                    sync.onClientData(message.payload, 0, message.payloadLength);
+                    sync.addLinkTime(start - readyTime);
+                    write(message.payload);
+                    sync.addDeviceTime(System.nanoTime() - start);
+                } else {
+                    write(message.payload);
+                }
             }
             connection.reply(Protocol.generateReady(localId, remoteId));
+            readyTime = System.nanoTime();
             if (AdbHelper.replyToString(message.payload).startsWith("QUIT")) {
                 connection.removeService(remoteId);
             }
@@ -191,6 +351,9 @@ class Service {
                 //do nothing
             }
             if (count > 0) {
+                if (capture != null) {
+                    capture.deviceIn(connection.getId(), remoteId, bytes, 0, count);
+                }
                 if (count != length) {
                     return AdbHelper.replyToString(Arrays.copyOf(bytes, count));
                 } else {
@@ -202,25 +365,61 @@ class Service {
     }
 
     private int readAndReply() throws IOException {
+        if (sync != null && !sync.isOpaque()) {
+            return readSyncAndReply();
+        }
         if (!ended) {
             int read = 0, count = 0;
-            if (!waitAck) {
+            if (!waitAck && deviceIn != null) {
                 try {
-                    while (count < maxDataLength && (read = adbServer.getInputStream().read(buff, count, maxDataLength - count)) > 0) {
+                    while (count < maxDataLength && (read = deviceIn.read(buff, count, maxDataLength - count)) > 0) {
                         count += read;
                     }
                 } catch (SocketTimeoutException e) {
                     //do nothing
                 }
                 if (count > 0) {
-                    byte[] bytes;
-                    if (count != maxDataLength) {
-                        bytes = Arrays.copyOf(buff, count);
-                    } else {
-                        bytes = buff;
+                    relay(count);
+                }
+            }
+            return read;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Same as {@link #readAndReply()}, but keeps reading across read timeouts while the device
+     * is still in the middle of a sync reply, so that several 64 KB sync chunks are packed into
+     * one max-size A_WRTE instead of flushing whatever the socket returned.
+     */
+    private int readSyncAndReply() throws IOException {
+        if (!ended) {
+            int read = 0, count = 0;
+            if (!waitAck) {
+                long start = System.nanoTime();
+                InputStream is = deviceIn;
+                while (count < maxDataLength) {
+                    try {
+                        read = is.read(buff, count, maxDataLength - count);
+                    } catch (SocketTimeoutException e) {
+                        if (count == 0 || !sync.isDeviceOwing() || System.nanoTime() - start > SYNC_COALESCE_WINDOW) {
+                            break;
+                        }
+                        continue;
                     }
-                    connection.reply(Protocol.generateWrite(localId, remoteId, bytes));
-                    waitAck = true;
+                    if (read <= 0) {
+                        break;
+                    }
+                    sync.onDeviceData(buff, count, read);
+                    count += read;
+                    if (!sync.isDeviceOwing()) {
+                        break;
+                    }
+                }
+                if (count > 0) {
+                    sync.addDeviceTime(System.nanoTime() - start);
+                    relay(count);
                 }
             }
             return read;
@@ -229,9 +428,45 @@ class Service {
         }
     }
 
+    private void relay(int count) throws IOException {
+        lastActivity = System.nanoTime();
+        if (capture != null) {
+            capture.deviceIn(connection.getId(), remoteId, buff, 0, count);
+        }
+        ProxyEvents.Ack event = new ProxyEvents.Ack();
+        if (event.isEnabled()) {
+            event.begin();
+            event.size = count;
+            ack = event;
+        }
+        buffLength = count;
+        writes++;
+        connection.relayed(count);
+        waitAck = true;
+        connection.reply(Protocol.generateWrite(localId, remoteId, buff, count));
+        writeTime = System.nanoTime();
+        metrics.relayed(count, deviceIn.available());
+    }
+
+    private void commitOpenPhase(ProxyEvents.Open event, String phase, boolean success) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.serial = serial;
+            event.localId = localId;
+            event.remoteId = remoteId;
+            event.phase = phase;
+            event.service = service;
+            event.success = success;
+            event.commit();
+        }
+    }
+
     private void write(byte[] data) throws IOException {
         if (adbServer != null && data != null) {
             adbServer.getOutputStream().write(data);
+            if (capture != null) {
+                capture.deviceOut(connection.getId(), remoteId, data);
+            }
         }
     }
 }
@@ -0,0 +1,264 @@
+package io.github.syncxplus.tcpusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memory-mapped ring file of the traffic of one device, oldest records are overwritten.
+ * <dl>
+ * <dt>header (128 bytes)  <dd>magic, version, capture start (epoch ms), head, tail, wrapped, serial
+ * <dt>record              <dd>type (1), connection (4), stream (4), time since start in ns (8), length (4), data
+ * </dl>
+ * Client records hold whole ADB packets, device records hold the adb server side bytes of a stream
+ * (the remote id of its A_OPEN). A record that doesn't fit before the end of the ring is preceded by
+ * a wrap marker and written at the start of the ring.
+ */
+public class SessionCapture {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionCapture.class);
+    private static final ConcurrentMap<String, SessionCapture> instances = new ConcurrentHashMap<>();
+    private static final int MAGIC = 0x50414354;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 128;
+    private static final int SERIAL_MAX = 96;
+    private static final int RECORD_HEADER_LENGTH = 21;
+    private static final int OFFSET_HEAD = 16;
+    private static final int OFFSET_TAIL = 24;
+    private static final int OFFSET_WRAPPED = 32;
+
+    static final byte CLIENT_IN = 1;
+    static final byte CLIENT_OUT = 2;
+    static final byte DEVICE_IN = 3;
+    static final byte DEVICE_OUT = 4;
+    static final byte DEVICE_END = 5;
+    private static final byte WRAP = (byte) 0xFF;
+
+    private static volatile File directory;
+    private static volatile long capacity;
+
+    private final MappedByteBuffer buffer;
+    private final long start = System.nanoTime();
+    private final int size;
+    private int head;
+    private int tail;
+    private boolean wrapped;
+
+    /**
+     * Enable capture into <code>dir</code>, one ring of <code>sizeMb</code> per device, an empty dir disables it
+     */
+    public static void configure(String dir, int sizeMb) {
+        if (dir == null || dir.isEmpty() || sizeMb <= 0) {
+            directory = null;
+        } else {
+            directory = new File(dir);
+            capacity = sizeMb * 1024L * 1024L;
+            LOGGER.info("session capture to {}, {} MB per device", directory, sizeMb);
+        }
+    }
+
+    /**
+     * @return the capture of the device, or null if capture is disabled or the file can't be mapped
+     */
+    static SessionCapture get(String serial) {
+        File dir = directory;
+        if (dir == null) {
+            return null;
+        }
+        return instances.computeIfAbsent(serial, s -> {
+            try {
+                Files.createDirectories(dir.toPath());
+                return new SessionCapture(new File(dir, s.replaceAll("[^A-Za-z0-9._-]", "_") + ".tcap"), s, (int) Math.min(capacity, Integer.MAX_VALUE - HEADER_LENGTH));
+            } catch (IOException e) {
+                LOGGER.error("{} session capture not available", s, e);
+                return null;
+            }
+        });
+    }
+
+    private SessionCapture(File file, String serial, int size) throws IOException {
+        this.size = size;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + (long) size);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] name = serial.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, System.currentTimeMillis());
+        buffer.putInt(36, Math.min(name.length, SERIAL_MAX));
+        for (int i = 0; i < Math.min(name.length, SERIAL_MAX); i++) {
+            buffer.put(40 + i, name[i]);
+        }
+        LOGGER.info("{} session capture {}", serial, file);
+    }
+
+    void clientIn(int connection, Protocol.AdbMessage message) {
+        int length = Protocol.HEADER_LENGTH + message.payloadLength;
+        synchronized (this) {
+            if (!reserve(CLIENT_IN, connection, 0, length)) {
+                return;
+            }
+            buffer.putInt(message.command);
+            buffer.putInt(message.arg0);
+            buffer.putInt(message.arg1);
+            buffer.putInt(message.payloadLength);
+            buffer.putInt(message.checksum);
+            buffer.putInt(message.magic);
+            if (message.payloadLength > 0) {
+                buffer.put(message.payload, 0, message.payloadLength);
+            }
+            commit();
+        }
+    }
+
+    void clientOut(int connection, byte[] message) {
+        write(CLIENT_OUT, connection, 0, message, 0, message.length);
+    }
+
+    void deviceIn(int connection, int stream, byte[] data, int offset, int length) {
+        write(DEVICE_IN, connection, stream, data, offset, length);
+    }
+
+    void deviceOut(int connection, int stream, byte[] data) {
+        write(DEVICE_OUT, connection, stream, data, 0, data.length);
+    }
+
+    void deviceEnd(int connection, int stream) {
+        write(DEVICE_END, connection, stream, null, 0, 0);
+    }
+
+    private synchronized void write(byte type, int connection, int stream, byte[] data, int offset, int length) {
+        if (reserve(type, connection, stream, length)) {
+            if (length > 0) {
+                buffer.put(data, offset, length);
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Position the buffer after a new record header at head, dropping the oldest records it overlaps
+     */
+    private boolean reserve(byte type, int connection, int stream, int length) {
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        if (recordLength > size / 2) {
+            LOGGER.warn("record of {} bytes not captured", length);
+            return false;
+        }
+        if (head + recordLength > size) {
+            if (head < size) {
+                buffer.put(HEADER_LENGTH + head, WRAP);
+            }
+            if (tail >= head) {//the records left after head are older than the ones the new lap overwrites
+                tail = 0;
+            }
+            head = 0;
+            wrapped = true;
+        }
+        while (wrapped && tail >= head && tail < head + recordLength) {
+            tail = next(tail);
+        }
+        buffer.position(HEADER_LENGTH + head);
+        buffer.put(type);
+        buffer.putInt(connection);
+        buffer.putInt(stream);
+        buffer.putLong(System.nanoTime() - start);
+        buffer.putInt(length);
+        return true;
+    }
+
+    private void commit() {
+        head = buffer.position() - HEADER_LENGTH;
+        buffer.putLong(OFFSET_HEAD, head);
+        buffer.putLong(OFFSET_TAIL, tail);
+        buffer.putInt(OFFSET_WRAPPED, wrapped ? 1 : 0);
+    }
+
+    private int next(int offset) {
+        if (offset >= size || buffer.get(HEADER_LENGTH + offset) == WRAP) {
+            return 0;
+        }
+        int next = offset + RECORD_HEADER_LENGTH + buffer.getInt(HEADER_LENGTH + offset + 17);
+        return next >= size ? 0 : next;
+    }
+
+    /**
+     * A capture file read back in write order
+     */
+    static final class Recording {
+        final String serial;
+        final long startMillis;
+        final List<Record> records = new ArrayList<>();
+
+        private Recording(String serial, long startMillis) {
+            this.serial = serial;
+            this.startMillis = startMillis;
+        }
+    }
+
+    static final class Record {
+        final byte type;
+        final int connection;
+        final int stream;
+        final long nanos;
+        final byte[] data;
+
+        private Record(byte type, int connection, int stream, long nanos, byte[] data) {
+            this.type = type;
+            this.connection = connection;
+            this.stream = stream;
+            this.nanos = nanos;
+            this.data = data;
+        }
+    }
+
+    static Recording read(Path file) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt(0) != MAGIC || in.getInt(4) != VERSION) {
+            throw new IOException("Not a capture file: " + file);
+        }
+        byte[] name = new byte[in.getInt(36)];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = in.get(40 + i);
+        }
+        Recording recording = new Recording(new String(name, StandardCharsets.UTF_8), in.getLong(8));
+        int size = in.capacity() - HEADER_LENGTH;
+        int head = (int) in.getLong(OFFSET_HEAD);
+        int offset = (int) in.getLong(OFFSET_TAIL);
+        boolean wrapped = in.getInt(OFFSET_WRAPPED) != 0 && offset >= head;//records from tail to the end, then from 0 to head
+        while (true) {
+            if (wrapped && (offset >= size || in.get(HEADER_LENGTH + offset) == WRAP)) {
+                offset = 0;
+                wrapped = false;
+            }
+            if (!wrapped && offset >= head) {
+                break;
+            }
+            in.position(HEADER_LENGTH + offset);
+            byte type = in.get();
+            int connection = in.getInt();
+            int stream = in.getInt();
+            long nanos = in.getLong();
+            byte[] data = new byte[in.getInt()];
+            in.get(data);
+            recording.records.add(new Record(type, connection, stream, nanos, data));
+            offset = in.position() - HEADER_LENGTH;
+        }
+        return recording;
+    }
+}
@@ -0,0 +1,166 @@
+package io.github.syncxplus.tcpusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resume tickets, so that a client whose link dropped gets its authorized {@link Connection} back
+ * without the public key exchange and <code>shell:auth</code>. A ticket is issued in the device
+ * banner once the client key is verified, as <code>resume=TICKET</code>, and replaced at every
+ * resume. A client reconnecting within the ttl sends it in its own banner with the state of its
+ * streams, <code>host::...;resume=TICKET;streams=ID:RECEIVED:SENT,...</code> counting A_WRTE packets,
+ * and signs the AUTH token as at any connect. The ticket is good only with a signature of the key
+ * it was issued to, since it travels in clear. A connection whose link dropped without a FIN is
+ * still attached, it is taken over and its old socket closed. The device banner then answers <code>resumed=ID:RECEIVED,...</code> for the streams still
+ * open, otherwise the AUTH token is sent again and the client goes on with its public key. A lost
+ * A_WRTE is sent again by whichever side counted more, a lost ack is taken as given. Streams are
+ * kept open for the grace period after the drop, the connection for the ttl.
+ */
+public class SessionResume {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionResume.class);
+    private static final long INTERVAL = 1;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private static volatile long ttl;
+    private static volatile long grace;
+    private static ScheduledExecutorService executor;
+
+    /**
+     * @param ttl s a dropped connection can be resumed, 0 to disable
+     * @param grace s the streams of a dropped connection are kept
+     */
+    public static synchronized void configure(int ttl, int grace) {
+        SessionResume.ttl = TimeUnit.SECONDS.toNanos(ttl);
+        SessionResume.grace = TimeUnit.SECONDS.toNanos(Math.min(grace, ttl));
+        if (ttl > 0) {
+            LOGGER.info("sessions resumable for {} s, streams kept {} s", ttl, Math.min(grace, ttl));
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "session-resume");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                executor.scheduleWithFixedDelay(SessionResume::expire, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+            }
+        } else {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+            tickets.clear();
+        }
+    }
+
+    static boolean isEnabled() {
+        return ttl > 0;
+    }
+
+    /**
+     * @param previous ticket of the connection, revoked
+     * @param publicKey public key the client was verified with, the resume signature is checked with it
+     * @return the new ticket, null if resuming is disabled
+     */
+    static Ticket issue(Connection connection, String publicKey, Ticket previous) {
+        revoke(previous);
+        if (!isEnabled()) {
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder value = new StringBuilder();
+        for (byte b : bytes) {
+            value.append(String.format("%02x", b));
+        }
+        Ticket ticket = new Ticket(value.toString(), connection, publicKey);
+        tickets.put(ticket.value, ticket);
+        return ticket;
+    }
+
+    /**
+     * A ticket is good once, a refused one is kept for its client to try again
+     * @param signature of the AUTH token by the client
+     * @return the connection to resume, null if the ticket is unknown, of another device, expired,
+     * or the signature is not of its key
+     */
+    static Connection redeem(String value, String serial, byte[] token, byte[] signature) {
+        Ticket ticket = tickets.get(value);
+        String result;
+        if (ticket == null) {
+            result = "unknown";
+        } else if (!ticket.connection.getSerial().equals(serial)) {
+            result = "device";
+        } else if (ticket.detached != 0 && System.nanoTime() - ticket.detached > ttl) {
+            result = "expired";
+        } else if (!AndroidPubKey.verify(ticket.publicKey, token, signature)) {
+            result = "key";
+        } else if (!tickets.remove(value, ticket)) {
+            result = "unknown";//redeemed meanwhile
+        } else {
+            result = "resumed";
+        }
+        ProxyMetrics.resumed(serial, result);
+        if (!"resumed".equals(result)) {
+            LOGGER.info("{} resume refused: {} ticket", serial, result);
+            return null;
+        }
+        LOGGER.info("{} resume for key {}", serial, ticket.key);
+        return ticket.connection;
+    }
+
+    static void detached(Ticket ticket) {
+        if (ticket != null) {
+            ticket.detached = System.nanoTime();
+        }
+    }
+
+    static void revoke(Ticket ticket) {
+        if (ticket != null) {
+            tickets.remove(ticket.value);
+        }
+    }
+
+    private static void expire() {
+        try {
+            long now = System.nanoTime();
+            for (Ticket ticket : tickets.values()) {
+                long detached = ticket.detached;
+                if (detached == 0) {
+                    continue;
+                }
+                if (now - detached > ttl) {
+                    tickets.remove(ticket.value);
+                    ticket.connection.reap("not resumed in " + TimeUnit.NANOSECONDS.toSeconds(ttl) + " s");
+                } else if (now - detached > grace && !ticket.streamsClosed) {
+                    ticket.streamsClosed = true;
+                    ticket.connection.closeServices();
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("session resume error", e);
+        }
+    }
+
+    static final class Ticket {
+        final String value;
+        private final Connection connection;
+        final String publicKey;
+        final String key;
+        private volatile long detached;
+        private volatile boolean streamsClosed;
+
+        private Ticket(String value, Connection connection, String publicKey) {
+            this.value = value;
+            this.connection = connection;
+            this.publicKey = publicKey;
+            String name = publicKey.trim();
+            this.key = name.substring(name.lastIndexOf(' ') + 1);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package io.github.syncxplus.tcpusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Tracks the framing of a <code>sync:</code> service in both directions.
+ * @see <a href="https://android.googlesource.com/platform/system/core/+/master/adb/SYNC.TXT">SYNC.TXT</a>
+ * <dl>
+ * <dt>client request  <dd>id + length + path (SEND, RECV, STAT, LIST, QUIT)
+ * <dt>SEND body       <dd>DATA + length + data ... DONE + mtime, answered by OKAY or FAIL
+ * <dt>RECV reply      <dd>DATA + length + data ... DONE, or FAIL + length + message
+ * <dt>STAT reply      <dd>STAT + mode + size + time
+ * <dt>LIST reply      <dd>DENT + mode + size + time + length + name ... DONE + 16 bytes
+ * </dl>
+ * Anything else switches the stream to opaque mode and it is relayed as before.
+ */
+class SyncStream {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyncStream.class);
+
+    static final int ID_SEND = 0x444e4553;
+    static final int ID_RECV = 0x56434552;
+    static final int ID_STAT = 0x54415453;
+    static final int ID_LIST = 0x5453494c;
+    static final int ID_DENT = 0x544e4544;
+    static final int ID_DATA = 0x41544144;
+    static final int ID_DONE = 0x454e4f44;
+    static final int ID_OKAY = 0x59414b4f;
+    static final int ID_FAIL = 0x4c494146;
+    static final int ID_QUIT = 0x54495551;
+
+    private static final int REQUEST_LENGTH = 8;
+    private static final int STAT_LENGTH = 16;
+    private static final int DENT_LENGTH = 20;
+    private static final int PATH_MAX = 1024;
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+
+    private final String serial;
+    private final Deque<Transfer> pending = new ArrayDeque<>();
+    private final Frame client = new Frame();
+    private final Frame device = new Frame();
+    private final ByteArrayOutputStream path = new ByteArrayOutputStream();
+    private Transfer sending;
+    private boolean opaque;
+
+    SyncStream(String serial) {
+        this.serial = serial;
+    }
+
+    synchronized boolean isOpaque() {
+        return opaque;
+    }
+
+    /**
+     * @return true if the device still owes bytes for a request it has already received,
+     * i.e. a relay should keep reading instead of flushing a partial payload
+     */
+    synchronized boolean isDeviceOwing() {
+        if (opaque) {
+            return false;
+        }
+        if (device.isPartial()) {
+            return true;
+        }
+        Transfer head = pending.peek();
+        return head != null && head.request != ID_SEND;
+    }
+
+    synchronized void onClientData(byte[] data, int offset, int length) {
+        int end = offset + length;
+        while (!opaque && offset < end) {
+            offset = client.fill(data, offset, end, REQUEST_LENGTH);
+            if (client.isHeaderReady()) {
+                int id = client.getInt(0);
+                int len = client.getInt(4);
+                if (!client.started) {
+                    client.started = true;
+                    if (sending != null) {
+                        if (id == ID_DATA) {
+                            if (len < 0 || len > SYNC_DATA_MAX) {
+                                setOpaque("data length " + len + " in SEND");
+                                break;
+                            }
+                            client.remaining = len;
+                            sending.bytes += len;
+                        } else if (id != ID_DONE) {
+                            setOpaque("unexpected " + Protocol.getCommandString(id) + " in SEND");
+                        }
+                    } else if (id == ID_SEND || id == ID_RECV || id == ID_STAT || id == ID_LIST) {
+                        if (len < 0 || len > PATH_MAX) {
+                            setOpaque("path length " + len + " of " + Protocol.getCommandString(id));
+                            break;
+                        }
+                        client.remaining = len;
+                        path.reset();
+                    } else if (id != ID_QUIT) {
+                        setOpaque("unexpected request " + Protocol.getCommandString(id));
+                        break;
+                    }
+                }
+                int skip = (int) Math.min(client.remaining, end - offset);
+                if (sending == null && id != ID_QUIT) {
+                    path.write(data, offset, skip);
+                }
+                offset += skip;
+                client.remaining -= skip;
+                if (client.remaining == 0) {
+                    onClientFrame(id);
+                    client.reset();
+                }
+            }
+        }
+    }
+
+    synchronized void onDeviceData(byte[] data, int offset, int length) {
+        int end = offset + length;
+        while (!opaque && offset < end) {
+            Transfer head = pending.peek();
+            if (head == null) {
+                setOpaque("unsolicited " + (end - offset) + " bytes from device");
+                break;
+            }
+            int headerLength = head.request == ID_STAT ? STAT_LENGTH : head.request == ID_LIST ? DENT_LENGTH : REQUEST_LENGTH;
+            offset = device.fill(data, offset, end, headerLength);
+            if (device.isHeaderReady()) {
+                int id = device.getInt(0);
+                if (!device.started) {
+                    device.started = true;
+                    if (id == ID_DATA && head.request == ID_RECV) {
+                        device.remaining = device.getInt(4);
+                        head.bytes += device.remaining;
+                    } else if (id == ID_FAIL && head.request != ID_LIST && head.request != ID_STAT) {
+                        device.remaining = device.getInt(4);
+                    } else if (id == ID_DENT && head.request == ID_LIST) {
+                        device.remaining = device.getInt(16);
+                    } else if (id == ID_STAT && head.request == ID_STAT
+                            || id == ID_DONE && (head.request == ID_RECV || head.request == ID_LIST)
+                            || id == ID_OKAY && head.request == ID_SEND) {
+                        device.remaining = 0;
+                    } else {
+                        setOpaque("unexpected " + Protocol.getCommandString(id) + " from device");
+                        break;
+                    }
+                    if (device.remaining < 0) {
+                        setOpaque("invalid length " + device.remaining + " from device");
+                        break;
+                    }
+                }
+                int skip = (int) Math.min(device.remaining, end - offset);
+                offset += skip;
+                device.remaining -= skip;
+                if (device.remaining == 0) {
+                    if (id != ID_DATA && id != ID_DENT) {
+                        pending.poll();
+                        head.finish(serial, id != ID_FAIL);
+                    }
+                    device.reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Time the relay spent on the adb server side (reading replies, or writing pushed data)
+     */
+    synchronized void addDeviceTime(long nanos) {
+        Transfer transfer = current();
+        if (transfer != null) {
+            transfer.deviceNanos += nanos;
+        }
+    }
+
+    /**
+     * Time the relay spent waiting on the adb client (acks of pulled data, or next pushed packet)
+     */
+    synchronized void addLinkTime(long nanos) {
+        Transfer transfer = current();
+        if (transfer != null) {
+            transfer.linkNanos += nanos;
+        }
+    }
+
+    private Transfer current() {
+        return sending != null ? sending : pending.peek();
+    }
+
+    private void onClientFrame(int id) {
+        if (sending != null) {
+            if (id == ID_DONE) {
+                sending = null;
+            }
+            return;
+        }
+        if (id == ID_QUIT) {
+            return;
+        }
+        String name = new String(path.toByteArray(), StandardCharsets.UTF_8);
+        if (id == ID_SEND && name.lastIndexOf(',') > 0) {
+            name = name.substring(0, name.lastIndexOf(','));//strip ",mode"
+        }
+        Transfer transfer = new Transfer(id, name);
+        pending.add(transfer);
+        if (id == ID_SEND) {
+            sending = transfer;
+        }
+    }
+
+    private void setOpaque(String reason) {
+        opaque = true;
+        pending.clear();
+        sending = null;
+        LOGGER.warn("{} sync framing lost, relaying opaque: {}", serial, reason);
+    }
+
+    private static final class Frame {
+        private final ByteBuffer header = ByteBuffer.allocate(DENT_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        private int headerLength;
+        private long remaining;
+        private boolean started;
+
+        int fill(byte[] data, int offset, int end, int length) {
+            if (headerLength == 0) {
+                headerLength = length;
+            }
+            int count = Math.min(headerLength - header.position(), end - offset);
+            header.put(data, offset, count);
+            return offset + count;
+        }
+
+        boolean isHeaderReady() {
+            return headerLength != 0 && header.position() == headerLength;
+        }
+
+        boolean isPartial() {
+            return header.position() != 0;
+        }
+
+        int getInt(int index) {
+            return header.getInt(index);
+        }
+
+        void reset() {
+            header.clear();
+            headerLength = 0;
+            remaining = 0;
+            started = false;
+        }
+    }
+
+    private static final class Transfer {
+        private final int request;
+        private final String path;
+        private final long start = System.nanoTime();
+        private long bytes;
+        private long deviceNanos;
+        private long linkNanos;
+
+        Transfer(int request, String path) {
+            this.request = request;
+            this.path = path;
+        }
+
+        void finish(String serial, boolean success) {
+            if (request != ID_SEND && request != ID_RECV) {
+                return;
+            }
+            long duration = Math.max(System.nanoTime() - start, 1);
+            String direction = request == ID_SEND ? "push" : "pull";
+            if (success) {
+                LOGGER.info("{} sync {} {}: {} bytes in {} ms, {} KB/s (device {} ms, link {} ms)",
+                        serial, direction, path, bytes, duration / 1000000, bytes * 1000000000L / duration / 1024,
+                        deviceNanos / 1000000, linkNanos / 1000000);
+            } else {
+                LOGGER.warn("{} sync {} {} failed after {} bytes in {} ms", serial, direction, path, bytes, duration / 1000000);
+            }
+        }
+    }
+}
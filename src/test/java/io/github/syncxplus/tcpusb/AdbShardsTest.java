@@ -0,0 +1,95 @@
+package io.github.syncxplus.tcpusb;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class AdbShardsTest {
+    private final Map<String, IDevice> devices = new ConcurrentHashMap<>();
+    private final AndroidDebugBridge.IDeviceChangeListener listener = new AndroidDebugBridge.IDeviceChangeListener() {
+        @Override
+        public void deviceConnected(IDevice device) {
+            devices.put(device.getSerialNumber(), device);
+        }
+
+        @Override
+        public void deviceDisconnected(IDevice device) {
+            devices.remove(device.getSerialNumber());
+        }
+
+        @Override
+        public void deviceChanged(IDevice device, int changeMask) {
+        }
+    };
+    private FakeAdbServer first;
+    private FakeAdbServer second;
+
+    @After
+    public void tearDown() {
+        AdbShards.shutdown();
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void routeToOwner() throws Exception {
+        first = new FakeAdbServer(Collections.singletonList("usb-1"), 0, 0, 0).start();
+        second = new FakeAdbServer(Collections.singletonList("usb-2"), 0, 0, 0).start();
+        second.setProperty("usb-2", "ro.product.model", "Pixel");
+        configure();
+        Assert.assertEquals(first.getAddress(), AdbShards.route("usb-1"));
+        Assert.assertEquals(second.getAddress(), AdbShards.route("usb-2"));
+        Assert.assertEquals("Pixel", devices.get("usb-2").getProperty("ro.product.model"));
+
+        int port = SessionReplay.getFreePort();
+        Server server = Server.getInstance(devices.get("usb-2"));
+        server.setKey("usb-2");
+        server.setPort(port);
+        server.start();
+        try (AdbClient client = new AdbClient(InetAddress.getLoopbackAddress().getHostAddress(), port, AdbClient.generateKey())) {
+            SessionReplay.awaitListening(port);
+            client.connect();
+            Assert.assertTrue(client.open("shell:auth usb-2").awaitClose(5, TimeUnit.SECONDS));
+            Assert.assertTrue(client.open("shell:echo routed").awaitClose(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, second.getOpenCount("shell:echo routed"));
+            Assert.assertEquals(0, first.getOpenCount("shell:echo routed"));
+        } finally {
+            server.stop();
+            Server.removeInstance("usb-2");
+        }
+
+        second.getSerials().remove("usb-2");
+        AdbShards.poll();
+        Assert.assertNull(AdbShards.route("usb-2"));
+        Assert.assertFalse(devices.containsKey("usb-2"));
+    }
+
+    @Test
+    public void balanceNetworkDevices() throws Exception {
+        first = new FakeAdbServer(Arrays.asList("10.0.0.1:5555", "10.0.0.2:5555", "10.0.0.3:5555", "usb-1"), 0, 0, 0).start();
+        second = new FakeAdbServer(Collections.emptyList(), 0, 0, 0).start();
+        configure();
+        Assert.assertEquals(4, devices.size());
+        Assert.assertEquals(first.getAddress(), AdbShards.route("usb-1"));
+        Assert.assertEquals(Arrays.asList("10.0.0.3:5555"), second.getSerials());
+        Assert.assertEquals(second.getAddress(), AdbShards.route("10.0.0.3:5555"));
+        AdbShards.poll();
+        Assert.assertEquals(second.getAddress(), AdbShards.route("10.0.0.3:5555"));
+        Assert.assertEquals(4, devices.size());
+    }
+
+    private void configure() {
+        String shards = "127.0.0.1:" + first.getAddress().getPort() + ",adb-host,127.0.0.1:adb,127.0.0.1:70000,127.0.0.1:" + second.getAddress().getPort();
+        Assert.assertTrue(AdbShards.configure(shards, 0, 0, "adb", 3600, listener));
+        AdbShards.poll();
+    }
+}
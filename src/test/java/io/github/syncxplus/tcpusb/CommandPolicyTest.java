@@ -0,0 +1,54 @@
+package io.github.syncxplus.tcpusb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class CommandPolicyTest {
+    @Test
+    public void defaults() {
+        CommandPolicy.configure(null, null, 0);
+        Assert.assertFalse(CommandPolicy.evaluate("").allowed);
+        Assert.assertFalse(CommandPolicy.evaluate("shell:").allowed);
+        Assert.assertFalse(CommandPolicy.evaluate("shell,v2,raw:").allowed);
+        Assert.assertFalse(CommandPolicy.evaluate("reboot:").allowed);
+        Assert.assertFalse(CommandPolicy.evaluate("shell:su").allowed);
+        Assert.assertFalse(CommandPolicy.evaluate("shell:ls;  rm -rf /sdcard").allowed);
+        Assert.assertFalse(CommandPolicy.evaluate("su").allowed);
+        Assert.assertFalse(CommandPolicy.evaluate("exec:rm -f /sdcard/a").allowed);
+        Assert.assertTrue(CommandPolicy.evaluate("shell:ls -l").allowed);
+        Assert.assertTrue(CommandPolicy.evaluate("shell:sum").allowed);
+        Assert.assertTrue(CommandPolicy.evaluate("sync:").allowed);
+        Assert.assertTrue(CommandPolicy.evaluate("reboot:bootloader").allowed);
+    }
+
+    @Test
+    public void cache() {
+        CommandPolicy.load(Arrays.asList("allow shell first am", "deny shell any"), "test");
+        Assert.assertFalse(CommandPolicy.evaluate("shell:pm list packages").cached);
+        Assert.assertTrue(CommandPolicy.evaluate("shell:pm list packages").cached);
+        Assert.assertFalse(CommandPolicy.evaluate("shell:pm list packages").allowed);
+        Assert.assertTrue(CommandPolicy.evaluate("shell:am start").allowed);
+        CommandPolicy.load(Arrays.asList("allow shell any"), "test");
+        Assert.assertFalse(CommandPolicy.evaluate("shell:pm list packages").cached);
+        Assert.assertTrue(CommandPolicy.evaluate("shell:pm list packages").allowed);
+        CommandPolicy.configure(null, null, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformed() {
+        CommandPolicy.load(Arrays.asList("block shell any"), "test");
+    }
+
+    @Test
+    public void longCommand() {
+        CommandPolicy.configure(null, null, 0);
+        StringBuilder sb = new StringBuilder("shell:am instrument");
+        for (int i = 0; i < 2000; i++) {
+            sb.append(" -e arg").append(i).append(' ').append(i);
+        }
+        Assert.assertTrue(CommandPolicy.evaluate(sb.toString()).allowed);
+        Assert.assertFalse(CommandPolicy.evaluate(sb.append(" rm").toString()).allowed);
+    }
+}
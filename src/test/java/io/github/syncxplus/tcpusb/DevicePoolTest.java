@@ -0,0 +1,126 @@
+package io.github.syncxplus.tcpusb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class DevicePoolTest {
+    private static final List<String> SERIALS = Arrays.asList("pool-1", "pool-2", "pool-3");
+    private final List<Server> servers = new ArrayList<>();
+    private FakeAdbServer adb;
+    private int poolPort;
+
+    @Before
+    public void setUp() throws Exception {
+        adb = new FakeAdbServer(SERIALS, 0, 0, 0).start();
+        for (String serial : SERIALS) {
+            Map<String, String> properties = new HashMap<>();
+            properties.put("ro.product.model", "pool-3".equals(serial) ? "Other" : "Pixel");
+            servers.add(ProxyFixture.start(AdbShards.device(serial, properties::get), adb));
+        }
+        poolPort = SessionReplay.getFreePort();
+        DevicePool.configure(Collections.singletonList("pixels " + poolPort + " ro.product.model=Pixel"), 1, 10, 0);
+        SessionReplay.awaitListening(poolPort);
+    }
+
+    @After
+    public void tearDown() {
+        DevicePool.configure(Collections.emptyList(), 1, 0, 0);
+        for (Server server : servers) {
+            server.stop();
+        }
+        for (String serial : SERIALS) {
+            Server.removeInstance(serial);
+        }
+        adb.close();
+    }
+
+    @Test
+    public void leastLoadedThenQueued() throws Exception {
+        KeyPair key = AdbClient.generateKey();
+        AdbClient first = connect(key);
+        AdbClient second = connect(key);
+        Assert.assertEquals(1, servers.get(0).getConnectionCount());
+        Assert.assertEquals(1, servers.get(1).getConnectionCount());
+        Assert.assertEquals(0, servers.get(2).getConnectionCount());
+        Assert.assertEquals(1.0, DevicePool.get(poolPort).getUtilization(), 0.001);
+
+        CompletableFuture<AdbClient> third = CompletableFuture.supplyAsync(() -> {
+            try {
+                return connect(key);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (DevicePool.get(poolPort).getQueued() == 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        Assert.assertEquals(1, DevicePool.get(poolPort).getQueued());
+        Assert.assertFalse(third.isDone());
+
+        first.close();
+        AdbClient client = third.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(0, DevicePool.get(poolPort).getQueued());
+        AdbClient.Stream echo = client.open("shell:echo pooled");
+        Assert.assertTrue(echo.awaitClose(5, TimeUnit.SECONDS));
+        Assert.assertEquals("echo pooled\n".length(), echo.getBytesReceived());
+        Assert.assertEquals(0, servers.get(2).getConnectionCount());
+        client.close();
+        second.close();
+    }
+
+    @Test
+    public void stickyOnlyWhenLeastLoaded() throws Exception {
+        poolPort = SessionReplay.getFreePort();
+        DevicePool.configure(Collections.singletonList("pixels " + poolPort + " ro.product.model=Pixel"), 2, 10, 600);
+        SessionReplay.awaitListening(poolPort);
+        awaitNoConnection();
+        KeyPair key = AdbClient.generateKey();
+        AdbClient first = connect(key);
+        Server previous = servers.get(0).getConnectionCount() > 0 ? servers.get(0) : servers.get(1);
+        Server other = previous == servers.get(0) ? servers.get(1) : servers.get(0);
+        AdbClient second = connect(key);//room left on the previous device, the other is less loaded
+        Assert.assertEquals(1, previous.getConnectionCount());
+        Assert.assertEquals(1, other.getConnectionCount());
+        first.close();
+        second.close();
+        awaitNoConnection();
+        try (AdbClient again = connect(key)) {
+            Assert.assertEquals(0, previous.getConnectionCount());//back on the last device of the host
+            Assert.assertEquals(1, other.getConnectionCount());
+            Assert.assertFalse(again.isClosed());
+        }
+    }
+
+    @Test
+    public void invalidListenerIgnored() throws Exception {
+        int port = SessionReplay.getFreePort();
+        DevicePool.configure(Arrays.asList("pixels 90o1 ro.product.model=Pixel", "pixels 70000 ro.product.model=Pixel",
+                "pixels " + port + " ro.product.model=Pixel"), 1, 10, 0);
+        SessionReplay.awaitListening(port);
+        Assert.assertNotNull(DevicePool.get(port));
+    }
+
+    private void awaitNoConnection() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (servers.get(0).getConnectionCount() + servers.get(1).getConnectionCount() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+    }
+
+    private AdbClient connect(KeyPair key) throws Exception {
+        return ProxyFixture.connect(poolPort, "pixels", key);
+    }
+}
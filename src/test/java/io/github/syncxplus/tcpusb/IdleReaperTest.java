@@ -0,0 +1,64 @@
+package io.github.syncxplus.tcpusb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class IdleReaperTest {
+    private static final String SERIAL = "idle-serial";
+    private ProxyFixture proxy;
+    private Server server;
+
+    @Before
+    public void setUp() throws Exception {
+        proxy = new ProxyFixture(SERIAL, 0);
+        server = proxy.server;
+    }
+
+    @After
+    public void tearDown() {
+        IdleReaper.configure(0, 0, 0);
+        proxy.close();
+    }
+
+    @Test
+    public void silentConnection() throws Exception {
+        IdleReaper.configure(1, 0, 0);
+        try (AdbClient client = proxy.connect()) {
+            Assert.assertEquals(1, Server.describeConnections().get(SERIAL).size());
+            for (int i = 0; i < 50 && !client.isClosed(); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(client.isClosed());
+            Assert.assertEquals(0, server.getConnectionCount());
+        }
+    }
+
+    @Test
+    public void quietServiceKeepsConnection() throws Exception {
+        IdleReaper.configure(1, 0, 0);
+        try (AdbClient client = proxy.connect()) {
+            AdbClient.Stream stream = client.open("shell:cat");
+            Assert.assertTrue(stream.awaitOpen(5, TimeUnit.SECONDS) >= 0);
+            Thread.sleep(2500);
+            Assert.assertFalse(client.isClosed());
+            Assert.assertEquals(1, server.getServiceCount());
+        }
+    }
+
+    @Test
+    public void idleService() throws Exception {
+        IdleReaper.configure(0, 1, 0);
+        try (AdbClient client = proxy.connect()) {
+            AdbClient.Stream stream = client.open("shell:cat");
+            Assert.assertTrue(stream.awaitOpen(5, TimeUnit.SECONDS) >= 0);
+            Assert.assertEquals(1, server.getServiceCount());
+            Assert.assertTrue(stream.awaitClose(5, TimeUnit.SECONDS));
+            Assert.assertEquals(0, server.getServiceCount());
+            Assert.assertFalse(client.isClosed());
+        }
+    }
+}
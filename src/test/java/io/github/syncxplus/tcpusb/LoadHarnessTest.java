@@ -0,0 +1,26 @@
+package io.github.syncxplus.tcpusb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class LoadHarnessTest {
+    @Test
+    public void mixed() throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("devices", "2");
+        options.put("clients", "4");
+        options.put("duration", "3");
+        options.put("pull", "1");
+        options.put("keys", "1");
+        LoadHarness harness = new LoadHarness(options);
+        harness.run();
+        harness.report(System.out);
+        Assert.assertTrue(harness.getOpens() > 0);
+        Assert.assertEquals(0, harness.getFailedOpens());
+        Assert.assertEquals(0, harness.getErrors());
+        Assert.assertTrue(harness.getBytesReceived() > 1024 * 1024);
+    }
+}
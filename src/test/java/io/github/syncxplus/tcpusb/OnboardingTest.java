@@ -0,0 +1,146 @@
+package io.github.syncxplus.tcpusb;
+
+import com.android.ddmlib.IDevice;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OnboardingTest {
+    private final List<IDevice> devices = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (IDevice device : devices) {
+            Onboarding.disconnected(device);
+        }
+        Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void burst() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger prefetched = new AtomicInteger();
+        for (int i = 0; i < 30; i++) {
+            devices.add(AdbShards.device("rack-" + i, name -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    //do nothing
+                }
+                prefetched.incrementAndGet();
+                return "replay";
+            }));
+        }
+        int first = SessionReplay.getFreePort();
+        try (ServerSocket taken = new ServerSocket(first)) {
+            Onboarding.configure(first + "-" + (first + 39), 4, false);
+            for (IDevice device : devices) {
+                Onboarding.connected(device);
+            }
+            //the 4 workers wait on the first devices, the callbacks of the others are still queued
+            for (int i = 10; i < 15; i++) {
+                Onboarding.connected(devices.get(i));
+            }
+            for (int i = 15; i < 20; i++) {
+                Onboarding.disconnected(devices.get(i));
+                Onboarding.connected(devices.get(i));
+            }
+            release.countDown();
+            Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+            Set<Integer> ports = new HashSet<>();
+            for (IDevice device : devices) {
+                Server server = Server.getInstance(device);
+                Assert.assertTrue(server.isRunning());
+                Assert.assertTrue(server.getPort() > taken.getLocalPort() && server.getPort() <= first + 39);
+                ports.add(server.getPort());
+            }
+            Assert.assertEquals(30, ports.size());
+            Assert.assertEquals(30, prefetched.get());
+            String report = Onboarding.getLastBurst();
+            Assert.assertTrue(report, report.startsWith("30 devices usable"));
+            Assert.assertTrue(report, report.endsWith("15 callbacks coalesced"));
+        }
+        devices.add(AdbShards.device("rack-30", name -> "replay"));
+        Onboarding.connected(devices.get(30));
+        Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+        Assert.assertEquals(first, Server.getInstance(devices.get(30)).getPort());//freed since
+    }
+
+    @Test
+    public void portRange() {
+        Assert.assertArrayEquals(new int[] {8081, 8580}, Onboarding.parseRange("8081 - 8580"));
+        Assert.assertArrayEquals(new int[] {9000, 9000}, Onboarding.parseRange("9000"));
+        Assert.assertNull(Onboarding.parseRange("8081-"));
+        Assert.assertNull(Onboarding.parseRange("8580-8081"));
+        Assert.assertNull(Onboarding.parseRange("8081-70000"));
+        Assert.assertNull(Onboarding.parseRange("ports"));
+    }
+
+    @Test
+    public void reconnectKeepsPort() throws Exception {
+        int first = SessionReplay.getFreePort();
+        Onboarding.configure(first + "-" + (first + 9), 2, false);
+        devices.add(AdbShards.device("usb-1", name -> "replay"));
+        devices.add(AdbShards.device("usb-2", name -> "replay"));
+        for (IDevice device : devices) {
+            Onboarding.connected(device);
+        }
+        Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+        int port = Server.getInstance(devices.get(1)).getPort();
+
+        Onboarding.disconnected(devices.get(1));
+        Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+        IDevice reconnected = AdbShards.device("usb-2", name -> "replay");
+        devices.set(1, reconnected);
+        Onboarding.connected(reconnected);
+        Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+        Server server = Server.getInstance(reconnected);
+        Assert.assertSame(reconnected, server.getDevice());
+        Assert.assertTrue(server.isRunning());
+        Assert.assertEquals(port, server.getPort());
+        SessionReplay.awaitListening(port);
+    }
+
+    @Test
+    public void returningSerialLeavesTakenPort() throws Exception {
+        int first = SessionReplay.getFreePort();
+        Onboarding.configure(first + "-" + (first + 9), 2, false);
+        devices.add(AdbShards.device("usb-1", name -> "replay"));
+        Onboarding.connected(devices.get(0));
+        Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+        int port = Server.getInstance(devices.get(0)).getPort();
+        Onboarding.disconnected(devices.get(0));
+        Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+
+        devices.add(AdbShards.device("usb-2", name -> "replay"));
+        Onboarding.connected(devices.get(1));//gets the port usb-1 left
+        Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+        Assert.assertEquals(port, Server.getInstance(devices.get(1)).getPort());
+        Onboarding.disconnected(devices.get(0));//again, it holds no port
+        IDevice returning = AdbShards.device("usb-1", name -> "replay");
+        devices.set(0, returning);
+        Onboarding.connected(returning);
+        devices.add(AdbShards.device("usb-3", name -> "replay"));
+        Onboarding.connected(devices.get(2));
+        Assert.assertTrue(Onboarding.awaitIdle(10, TimeUnit.SECONDS));
+
+        Set<Integer> ports = new HashSet<>();
+        for (IDevice device : devices) {
+            Server server = Server.getInstance(device);
+            Assert.assertTrue(server.isRunning());
+            ports.add(server.getPort());
+        }
+        Assert.assertEquals(3, ports.size());
+        Assert.assertEquals(port, Server.getInstance(devices.get(1)).getPort());
+        SessionReplay.awaitListening(port);
+    }
+}
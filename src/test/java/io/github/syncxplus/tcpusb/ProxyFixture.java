@@ -0,0 +1,64 @@
+package io.github.syncxplus.tcpusb;
+
+import com.android.ddmlib.IDevice;
+import org.junit.Assert;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A started {@link Server} in front of a {@link FakeAdbServer}, its key is the serial, and clients
+ * connected and authorized with <code>shell:auth</code>
+ */
+class ProxyFixture implements Closeable {
+    final FakeAdbServer adb;
+    final Server server;
+    final String serial;
+    final int port;
+
+    /**
+     * @param pullSize bytes of a pull or screen capture by the fake adb server
+     */
+    ProxyFixture(String serial, int pullSize) throws Exception {
+        this.serial = serial;
+        adb = new FakeAdbServer(Collections.singletonList(serial), 0, 0, pullSize).start();
+        server = start(AdbShards.device(serial, name -> "replay"), adb);
+        port = server.getPort();
+    }
+
+    static Server start(IDevice device, FakeAdbServer adb) throws Exception {
+        int port = SessionReplay.getFreePort();
+        Server server = Server.getInstance(device);
+        server.setKey(device.getSerialNumber());
+        server.setPort(port);
+        server.setAdbAddress(adb.getAddress());
+        server.start();
+        SessionReplay.awaitListening(port);
+        return server;
+    }
+
+    static AdbClient connect(int port, String authKey, KeyPair key) throws Exception {
+        AdbClient client = new AdbClient(InetAddress.getLoopbackAddress().getHostAddress(), port, key);
+        client.connect();
+        Assert.assertTrue(client.open("shell:auth " + authKey).awaitClose(5, TimeUnit.SECONDS));
+        return client;
+    }
+
+    AdbClient connect() throws Exception {
+        return connect(AdbClient.generateKey());
+    }
+
+    AdbClient connect(KeyPair key) throws Exception {
+        return connect(port, serial, key);
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+        Server.removeInstance(serial);
+        adb.close();
+    }
+}
@@ -0,0 +1,93 @@
+package io.github.syncxplus.tcpusb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ScreenCacheTest {
+    private static final String SERIAL = "screen-serial";
+    private static final int FRAME = 256 * 1024;
+    private ProxyFixture proxy;
+    private FakeAdbServer adb;
+
+    @Before
+    public void setUp() throws Exception {
+        ScreenCache.configure(5000, 1, 4);
+        proxy = new ProxyFixture(SERIAL, FRAME);
+        adb = proxy.adb;
+    }
+
+    @After
+    public void tearDown() {
+        ScreenCache.configure(0, 0, 0);
+        proxy.close();
+    }
+
+    @Test
+    public void sharedCapture() throws Exception {
+        List<AdbClient> clients = new ArrayList<>();
+        List<AdbClient.Stream> streams = new ArrayList<>();
+        KeyPair key = AdbClient.generateKey();
+        try {
+            for (int i = 0; i < 4; i++) {
+                AdbClient client = proxy.connect(key);
+                clients.add(client);
+                streams.add(client.open("shell:screencap -p"));
+            }
+            for (AdbClient.Stream stream : streams) {
+                Assert.assertTrue(stream.awaitClose(10, TimeUnit.SECONDS));
+                Assert.assertEquals(FRAME, stream.getBytesReceived());
+            }
+            AdbClient.Stream again = clients.get(0).open("shell:screencap -p");
+            Assert.assertTrue(again.awaitClose(10, TimeUnit.SECONDS));
+            Assert.assertEquals(FRAME, again.getBytesReceived());
+            Assert.assertEquals(1, adb.getOpenCount("shell:screencap -p"));
+        } finally {
+            for (AdbClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void framebuffer() throws Exception {
+        try (AdbClient client = proxy.connect()) {
+            AdbClient.Stream stream = client.open("framebuffer:");
+            Assert.assertTrue(stream.awaitBytes(13 * 4, 10, TimeUnit.SECONDS));
+            stream.write(new byte[1]);
+            Assert.assertTrue(stream.awaitClose(10, TimeUnit.SECONDS));
+            Assert.assertEquals(13 * 4 + FRAME, stream.getBytesReceived());
+            Assert.assertEquals(1, adb.getOpenCount("framebuffer:"));
+        }
+    }
+
+    @Test
+    public void captureOffReaderThread() throws Exception {
+        ScreenCache.configure(5000, 0.5, 4);
+        try (AdbClient client = proxy.connect()) {
+            Assert.assertTrue(client.open("shell:screencap -p").awaitClose(10, TimeUnit.SECONDS));
+            AdbClient.Stream frame = client.open("framebuffer:");//waits 2 s for the rate of the device
+            AdbClient.Stream echo = client.open("shell:echo meanwhile");
+            Assert.assertTrue(echo.awaitClose(1, TimeUnit.SECONDS));
+            Assert.assertFalse(frame.awaitBytes(1, 0, TimeUnit.SECONDS));
+            Assert.assertTrue(frame.awaitBytes(13 * 4, 10, TimeUnit.SECONDS));
+            frame.write(new byte[1]);
+            Assert.assertTrue(frame.awaitClose(10, TimeUnit.SECONDS));
+            Assert.assertEquals(13 * 4 + FRAME, frame.getBytesReceived());
+        }
+    }
+
+    @Test
+    public void fileNotCached() {
+        Assert.assertTrue(ScreenCache.isCacheable("shell:screencap -p"));
+        Assert.assertTrue(ScreenCache.isCacheable("exec:screencap -d 1 -p"));
+        Assert.assertFalse(ScreenCache.isCacheable("shell:screencap /sdcard/screen.png"));
+        Assert.assertFalse(ScreenCache.isCacheable("shell:screencap -p; rm /sdcard/x"));
+    }
+}
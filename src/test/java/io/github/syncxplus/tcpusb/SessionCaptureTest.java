@@ -0,0 +1,60 @@
+package io.github.syncxplus.tcpusb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+public class SessionCaptureTest {
+    @Test
+    public void ring() throws Exception {
+        File dir = Files.createTempDirectory("tcpusb-capture").toFile();
+        SessionCapture.configure(dir.getPath(), 1);
+        try {
+            SessionCapture capture = SessionCapture.get("ring-serial");
+            Assert.assertNotNull(capture);
+            byte[] data = new byte[100 * 1024];
+            for (int i = 0; i < 25; i++) {
+                data[0] = (byte) i;
+                capture.deviceIn(1, i, data, 0, data.length);
+            }
+            SessionCapture.Recording recording = SessionCapture.read(new File(dir, "ring-serial.tcap").toPath());
+            Assert.assertEquals("ring-serial", recording.serial);
+            List<SessionCapture.Record> records = recording.records;
+            Assert.assertTrue(records.size() < 25);
+            for (int i = 0; i < records.size(); i++) {
+                SessionCapture.Record record = records.get(i);
+                Assert.assertEquals(25 - records.size() + i, record.stream);
+                Assert.assertEquals(record.stream, record.data[0]);
+                Assert.assertEquals(data.length, record.data.length);
+            }
+        } finally {
+            SessionCapture.configure(null, 0);
+        }
+    }
+
+    @Test
+    public void laps() throws Exception {
+        File dir = Files.createTempDirectory("tcpusb-capture").toFile();
+        SessionCapture.configure(dir.getPath(), 1);
+        try {
+            SessionCapture capture = SessionCapture.get("laps-serial");
+            Assert.assertNotNull(capture);
+            Random random = new Random(7);
+            byte[] data = new byte[64 * 1024];
+            for (int count = 1; count <= 200; count++) {//about 6 laps
+                capture.deviceIn(1, count - 1, data, 0, 1 + random.nextInt(data.length));
+                List<SessionCapture.Record> records = SessionCapture.read(new File(dir, "laps-serial.tcap").toPath()).records;
+                Assert.assertFalse(records.isEmpty());
+                for (int i = 0; i < records.size(); i++) {
+                    Assert.assertEquals(count - records.size() + i, records.get(i).stream);
+                }
+            }
+        } finally {
+            SessionCapture.configure(null, 0);
+        }
+    }
+}
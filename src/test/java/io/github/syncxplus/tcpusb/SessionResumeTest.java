@@ -0,0 +1,132 @@
+package io.github.syncxplus.tcpusb;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class SessionResumeTest {
+    private static final String SERIAL = "resume-serial";
+    private ProxyFixture proxy;
+    private FakeAdbServer adb;
+    private Server server;
+
+    @Before
+    public void setUp() throws Exception {
+        proxy = new ProxyFixture(SERIAL, 0);
+        adb = proxy.adb;
+        server = proxy.server;
+    }
+
+    @After
+    public void tearDown() {
+        SessionResume.configure(0, 0);
+        proxy.close();
+    }
+
+    @Test
+    public void resumeWithStreams() throws Exception {
+        SessionResume.configure(30, 10);
+        try (AdbClient client = proxy.connect()) {
+            String ticket = client.getTicket();
+            Assert.assertNotNull(ticket);
+            AdbClient.Stream cat = client.open("shell:cat");
+            cat.write(new byte[64]);
+            Assert.assertTrue(cat.awaitBytes(64, 5, TimeUnit.SECONDS));
+
+            client.drop();
+            Assert.assertTrue(client.resume());
+            Assert.assertNotEquals(ticket, client.getTicket());
+            cat.write(new byte[64]);
+            Assert.assertTrue(cat.awaitBytes(128, 5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, adb.getOpenCount("shell:cat"));
+            Assert.assertEquals(1, server.getConnectionCount());
+
+            AdbClient.Stream echo = client.open("shell:echo x");//no shell:auth again
+            Assert.assertTrue(echo.awaitClose(5, TimeUnit.SECONDS));
+            Assert.assertEquals("echo x\n".length(), echo.getBytesReceived());
+        }
+    }
+
+    @Test
+    public void resumeWithoutFin() throws Exception {
+        SessionResume.configure(30, 10);
+        try (AdbClient client = proxy.connect()) {
+            AdbClient.Stream cat = client.open("shell:cat");
+            cat.write(new byte[64]);
+            Assert.assertTrue(cat.awaitBytes(64, 5, TimeUnit.SECONDS));
+
+            client.vanish();//the proxy never sees the drop
+            Assert.assertTrue(client.resume());
+            cat.write(new byte[64]);
+            Assert.assertTrue(cat.awaitBytes(128, 5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, adb.getOpenCount("shell:cat"));
+            Assert.assertEquals(1, server.getConnectionCount());
+        }
+    }
+
+    @Test
+    public void stolenTicketRefused() throws Exception {
+        SessionResume.configure(30, 10);
+        try (AdbClient client = proxy.connect(); AdbClient thief = proxy.connect()) {
+            thief.setTicket(client.getTicket());
+            thief.drop();
+            Assert.assertFalse(thief.resume());
+            AdbClient.Stream echo = client.open("shell:echo x");
+            Assert.assertTrue(echo.awaitClose(5, TimeUnit.SECONDS));
+            Assert.assertEquals("echo x\n".length(), echo.getBytesReceived());
+        }
+    }
+
+    @Test
+    public void ticketBoundToKey() throws Exception {
+        SessionResume.configure(30, 10);
+        try (AdbClient client = proxy.connect(); AdbClient thief = proxy.connect()) {
+            client.drop();
+            thief.setTicket(client.getTicket());
+            thief.drop();
+            Assert.assertFalse(thief.resume());
+            Assert.assertTrue(client.resume());
+        }
+    }
+
+    @Test
+    public void malformedStreams() {
+        Assert.assertEquals(Long.valueOf(7), Connection.parseStreams("1:7:3,2:0:0").get(1));
+        Assert.assertTrue(Connection.parseStreams("").isEmpty());
+        for (String streams : new String[] {"1:x:3", "1:7", "1:7:3,,2:0:0"}) {
+            try {
+                Connection.parseStreams(streams);
+                Assert.fail(streams);
+            } catch (NumberFormatException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void ticketExpires() throws Exception {
+        SessionResume.configure(1, 1);
+        try (AdbClient client = proxy.connect()) {
+            AdbClient.Stream cat = client.open("shell:cat");
+            cat.write(new byte[64]);
+            Assert.assertTrue(cat.awaitBytes(64, 5, TimeUnit.SECONDS));
+            client.drop();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (server.getConnectionCount() > 0 && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            Assert.assertEquals(0, server.getConnectionCount());
+            Assert.assertFalse(client.resume());
+        }
+    }
+
+    @Test
+    public void disabledWithoutTtl() throws Exception {
+        try (AdbClient client = proxy.connect()) {
+            Assert.assertNull(client.getTicket());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.syncxplus.tcpusb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+public class SyncStreamTest {
+    private static byte[] frame(int id, int length, byte[] body) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + (body == null ? 0 : body.length)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(id).putInt(length);
+        if (body != null) {
+            buffer.put(body);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] request(int id, String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        return frame(id, bytes.length, bytes);
+    }
+
+    @Test
+    public void pull() {
+        SyncStream stream = new SyncStream("serial");
+        stream.onClientData(request(SyncStream.ID_RECV, "/sdcard/a.bin"), 0, 21);
+        Assert.assertTrue(stream.isDeviceOwing());
+        byte[] data = frame(SyncStream.ID_DATA, 3, new byte[] {1, 2, 3});
+        stream.onDeviceData(data, 0, 5);
+        Assert.assertTrue(stream.isDeviceOwing());
+        stream.onDeviceData(data, 5, data.length - 5);
+        Assert.assertTrue(stream.isDeviceOwing());
+        byte[] done = frame(SyncStream.ID_DONE, 0, null);
+        stream.onDeviceData(done, 0, done.length);
+        Assert.assertFalse(stream.isDeviceOwing());
+        Assert.assertFalse(stream.isOpaque());
+    }
+
+    @Test
+    public void push() {
+        SyncStream stream = new SyncStream("serial");
+        byte[] send = request(SyncStream.ID_SEND, "/sdcard/a.bin,33206");
+        byte[] data = frame(SyncStream.ID_DATA, 4, new byte[] {1, 2, 3, 4});
+        byte[] done = frame(SyncStream.ID_DONE, 1500000000, null);
+        ByteBuffer packet = ByteBuffer.allocate(send.length + data.length + done.length);
+        packet.put(send).put(data).put(done);
+        stream.onClientData(packet.array(), 0, packet.capacity());
+        Assert.assertFalse(stream.isDeviceOwing());
+        byte[] okay = frame(SyncStream.ID_OKAY, 0, null);
+        stream.onDeviceData(okay, 0, okay.length);
+        Assert.assertFalse(stream.isOpaque());
+        stream.onClientData(frame(SyncStream.ID_QUIT, 0, null), 0, 8);
+        Assert.assertFalse(stream.isOpaque());
+    }
+
+    @Test
+    public void invalidDataLength() {
+        SyncStream stream = new SyncStream("serial");
+        byte[] send = request(SyncStream.ID_SEND, "/sdcard/a.bin,33206");
+        byte[] data = frame(SyncStream.ID_DATA, -8, new byte[8]);
+        ByteBuffer packet = ByteBuffer.allocate(send.length + data.length);
+        packet.put(send).put(data);
+        stream.onClientData(packet.array(), 0, packet.capacity());
+        Assert.assertTrue(stream.isOpaque());
+
+        stream = new SyncStream("serial");
+        stream.onClientData(send, 0, send.length);
+        stream.onClientData(frame(SyncStream.ID_DATA, 64 * 1024 + 1, null), 0, 8);
+        Assert.assertTrue(stream.isOpaque());
+    }
+
+    @Test
+    public void opaque() {
+        SyncStream stream = new SyncStream("serial");
+        stream.onClientData(request(0x32444e53, "/sdcard/a.bin"), 0, 21);
+        Assert.assertTrue(stream.isOpaque());
+        Assert.assertFalse(stream.isDeviceOwing());
+    }
+}
@@ -0,0 +1,421 @@
+package io.github.syncxplus.tcpusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal adb client speaking to a {@link Server}: CNXN, RSA AUTH with a real key and streams with
+ * A_WRTE/A_OKAY flow control. Data received on a stream is acked at once and counted, open and
+ * write-to-ack latencies are recorded. With the ticket of a {@link SessionResume}, a dropped
+ * connection is resumed with its streams.
+ */
+class AdbClient implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdbClient.class);
+    private static final byte[] CONNECT_PAYLOAD = "host::tcpusb\0".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SHA1_DIGEST_INFO = {
+            0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00, 0x04, 0x14
+    };
+    private final String host;
+    private final int port;
+    private final KeyPair key;
+    private volatile Socket socket;
+    private volatile InputStream in;
+    private volatile OutputStream out;
+    private volatile String ticket;
+    private volatile boolean dropped;
+    private volatile Socket silent;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    final Latencies openLatencies = new Latencies();
+    final Latencies writeLatencies = new Latencies();
+    private volatile boolean closed;
+
+    AdbClient(String host, int port, KeyPair key) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.key = key;
+        open();
+    }
+
+    private void open() throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    static KeyPair generateKey() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Encode a 2048-bit RSA public key the way adb clients send it in AUTH_RSAPUBLICKEY
+     * @param key
+     * @param name user@host part after the key
+     * @return base64 of the RSA PUBLIC KEY structure of {@link AndroidPubKey}, a space and the name
+     */
+    static String encode(RSAPublicKey key, String name) {
+        BigInteger n = key.getModulus();
+        BigInteger r32 = BigInteger.ONE.shiftLeft(32);
+        BigInteger rr = BigInteger.ONE.shiftLeft(AndroidPubKey.ANDROID_PUBKEY_MODULUS_SIZE * 8 * 2).mod(n);
+        ByteBuffer encoded = ByteBuffer.allocate(AndroidPubKey.ANDROID_PUBKEY_ENCODED_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        encoded.putInt(AndroidPubKey.ANDROID_PUBKEY_MODULUS_SIZE / Integer.BYTES);
+        encoded.putInt(r32.subtract(n.mod(r32).modInverse(r32)).intValue());
+        encoded.put(toLittleEndian(n));
+        encoded.put(toLittleEndian(rr));
+        encoded.putInt(key.getPublicExponent().intValue());
+        return Base64.getEncoder().encodeToString(encoded.array()) + " " + name;
+    }
+
+    /**
+     * Sign an AUTH_TOKEN like an adb client does: RSASSA-PKCS1-V1_5 over a token taken as a SHA-1 digest
+     */
+    static byte[] sign(PrivateKey key, byte[] token) throws GeneralSecurityException {
+        byte[] digestInfo = Arrays.copyOf(SHA1_DIGEST_INFO, SHA1_DIGEST_INFO.length + token.length);
+        System.arraycopy(token, 0, digestInfo, SHA1_DIGEST_INFO.length, token.length);
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        return cipher.doFinal(digestInfo);
+    }
+
+    private static byte[] toLittleEndian(BigInteger value) {
+        byte[] bigEndian = value.toByteArray();
+        byte[] littleEndian = new byte[AndroidPubKey.ANDROID_PUBKEY_MODULUS_SIZE];
+        for (int i = 0; i < AndroidPubKey.ANDROID_PUBKEY_MODULUS_SIZE && i < bigEndian.length; i++) {
+            littleEndian[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return littleEndian;
+    }
+
+    /**
+     * Send CNXN, sign the token, send the public key and wait for the device CNXN, then start reading
+     */
+    void connect() throws IOException {
+        send(Protocol.generateMessage(Protocol.A_CNXN, Protocol.VERSION, Protocol.MAXDATA, CONNECT_PAYLOAD));
+        boolean signed = false;
+        while (true) {
+            Protocol.AdbMessage message = Protocol.AdbMessage.parse(in);
+            if (message == null) {
+                throw new IOException("Connection closed during handshake");
+            }
+            if (message.command == Protocol.A_CNXN) {
+                ticket = Protocol.parseBanner(message.payload).get("resume");
+                break;
+            } else if (message.command == Protocol.A_AUTH && message.arg0 == Protocol.AUTH_TOKEN) {
+                if (!signed) {
+                    try {
+                        send(Protocol.generateMessage(Protocol.A_AUTH, Protocol.AUTH_SIGNATURE, 0, sign(key.getPrivate(), message.payload)));
+                    } catch (GeneralSecurityException e) {
+                        throw new IOException(e);
+                    }
+                    signed = true;
+                } else {
+                    String pubKey = encode((RSAPublicKey) key.getPublic(), "tcpusb@client") + "\0";
+                    send(Protocol.generateMessage(Protocol.A_AUTH, Protocol.AUTH_RSAPUBLICKEY, 0, pubKey.getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+        }
+        startReader();
+    }
+
+    private void startReader() {
+        InputStream in = this.in;
+        Thread reader = new Thread(() -> read(in), "adb-client-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    String getTicket() {
+        return ticket;
+    }
+
+    void setTicket(String ticket) {
+        this.ticket = ticket;
+    }
+
+    /**
+     * Lose the link without closing the streams, as a dropped network does
+     */
+    void drop() {
+        dropped = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //do nothing
+        }
+    }
+
+    /**
+     * Lose the link without a FIN, as a Wi-Fi or VPN drop does: the socket stays open, and what
+     * arrives on it is not read any more
+     */
+    void vanish() {
+        dropped = true;
+        silent = socket;
+    }
+
+    /**
+     * Reconnect after {@link #drop()} or {@link #vanish()} with the resume ticket, sign the token but send no public key,
+     * and resync the streams
+     * @return false if there is no ticket or the proxy refused it
+     */
+    boolean resume() throws IOException {
+        if (ticket == null) {
+            return false;
+        }
+        open();
+        StringBuilder states = new StringBuilder();
+        for (Stream stream : streams.values()) {
+            states.append(states.length() > 0 ? "," : "").append(stream.localId).append(':').append(stream.reads).append(':').append(stream.writes);
+        }
+        send(Protocol.generateMessage(Protocol.A_CNXN, Protocol.VERSION, Protocol.MAXDATA,
+                ("host::tcpusb;resume=" + ticket + ";streams=" + states + "\0").getBytes(StandardCharsets.UTF_8)));
+        boolean signed = false;
+        Protocol.AdbMessage message;
+        while ((message = Protocol.AdbMessage.parse(in)) != null && message.command != Protocol.A_CNXN) {
+            if (message.command != Protocol.A_AUTH || message.arg0 != Protocol.AUTH_TOKEN || signed) {
+                socket.close();
+                return false;
+            }
+            try {
+                send(Protocol.generateMessage(Protocol.A_AUTH, Protocol.AUTH_SIGNATURE, 0, sign(key.getPrivate(), message.payload)));
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            signed = true;
+        }
+        if (message == null) {
+            return false;
+        }
+        Map<String, String> banner = Protocol.parseBanner(message.payload);
+        ticket = banner.get("resume");
+        dropped = false;
+        startReader();
+        String resumed = banner.get("resumed");
+        if (resumed != null && !resumed.isEmpty()) {
+            for (String state : resumed.split(",")) {
+                String[] counts = state.split(":");
+                Stream stream = streams.get(Integer.parseInt(counts[0]));
+                if (stream != null) {
+                    stream.resumed(Long.parseLong(counts[1]));
+                }
+            }
+        }
+        return true;
+    }
+
+    Stream open(String service) throws IOException {
+        Stream stream = new Stream(ids.incrementAndGet());
+        streams.put(stream.localId, stream);
+        stream.openTime = System.nanoTime();
+        send(Protocol.generateMessage(Protocol.A_OPEN, stream.localId, 0, (service + "\0").getBytes(StandardCharsets.UTF_8)));
+        return stream;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+            if (silent != null) {
+                silent.close();
+            }
+        } catch (IOException e) {
+            //do nothing
+        }
+        for (Stream stream : streams.values()) {
+            stream.closed();
+        }
+    }
+
+    private synchronized void send(byte[] message) throws IOException {
+        out.write(message);
+        out.flush();
+    }
+
+    private void read(InputStream in) {
+        try {
+            Protocol.AdbMessage message;
+            while ((message = Protocol.AdbMessage.parse(in)) != null) {
+                if (dropped || in != this.in) {
+                    continue;//a link gone silent, or replaced by a resume
+                }
+                Stream stream = streams.get(message.arg1);
+                if (stream == null) {
+                    continue;
+                }
+                switch (message.command) {
+                    case Protocol.A_OKAY:
+                        stream.okay(message.arg0);
+                        break;
+                    case Protocol.A_WRTE:
+                        stream.received(message.payloadLength);
+                        send(Protocol.generateReady(stream.localId, message.arg0));
+                        break;
+                    case Protocol.A_CLSE:
+                        streams.remove(stream.localId);
+                        stream.closed();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed && !dropped) {
+                LOGGER.debug("adb client read error", e);
+            }
+        }
+        if (!dropped && in == this.in) {
+            close();
+        }
+    }
+
+    final class Stream {
+        private final int localId;
+        private final CountDownLatch opened = new CountDownLatch(1);
+        private final CountDownLatch ended = new CountDownLatch(1);
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private volatile int remoteId;
+        private volatile long openTime;
+        private volatile long openLatency = -1;
+        private volatile long writeTime;
+        private boolean waitAck;
+        private byte[] lastWrite;
+        private long writes;
+        private long reads;
+
+        private Stream(int localId) {
+            this.localId = localId;
+        }
+
+        /**
+         * @return open latency in ns, or -1 if the stream was closed without being opened
+         */
+        long awaitOpen(long timeout, TimeUnit unit) throws InterruptedException {
+            opened.await(timeout, unit);
+            return openLatency;
+        }
+
+        boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+            return ended.await(timeout, unit);
+        }
+
+        /**
+         * Wait for the stream to open and for the ack of the previous write, then write
+         */
+        void write(byte[] data) throws IOException, InterruptedException {
+            opened.await();
+            writeAfterAck(data);
+        }
+
+        private synchronized void writeAfterAck(byte[] data) throws IOException, InterruptedException {
+            while (waitAck && ended.getCount() > 0) {
+                wait(100);
+            }
+            if (ended.getCount() == 0) {
+                throw new IOException("Stream " + localId + " closed");
+            }
+            waitAck = true;
+            writeTime = System.nanoTime();
+            lastWrite = data;
+            writes++;
+            send(Protocol.generateWrite(localId, remoteId, data));
+        }
+
+        /**
+         * Write the last data again if the proxy did not receive it, else take its ack as lost
+         * @param proxyReceived A_WRTE packets the proxy received
+         */
+        private synchronized void resumed(long proxyReceived) throws IOException {
+            if (waitAck) {
+                if (writes > proxyReceived) {
+                    send(Protocol.generateWrite(localId, remoteId, lastWrite));
+                } else {
+                    waitAck = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        void close() throws IOException {
+            if (ended.getCount() > 0) {
+                send(Protocol.generateClose(localId, remoteId));
+            }
+        }
+
+        long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        /**
+         * @return false if the stream ended or the timeout elapsed before <code>count</code> bytes were received
+         */
+        synchronized boolean awaitBytes(long count, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (bytesReceived.get() < count) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || ended.getCount() == 0) {
+                    return bytesReceived.get() >= count;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        private synchronized void okay(int remoteId) {
+            if (openLatency < 0) {
+                this.remoteId = remoteId;
+                openLatency = System.nanoTime() - openTime;
+                openLatencies.record(openLatency);
+                opened.countDown();
+            } else if (waitAck) {
+                writeLatencies.record(System.nanoTime() - writeTime);
+                waitAck = false;
+                notifyAll();
+            }
+        }
+
+        private synchronized void received(int length) {
+            reads++;
+            bytesReceived.addAndGet(length);
+            notifyAll();
+        }
+
+        private synchronized void closed() {
+            opened.countDown();
+            ended.countDown();
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package io.github.syncxplus.tcpusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in adb server for running the proxy without devices. It lists a fixed set of serials and
+ * emulates the device side of the services:
+ * <dl>
+ * <dt>host:version, host:devices  <dd>protocol version and the device list, then close
+ * <dt>host:connect:, host:disconnect: <dd>add or remove a device of the list
+ * <dt>host:transport:SERIAL       <dd>OKAY for a listed device, FAIL otherwise
+ * <dt>shell:getprop               <dd>ro.serialno, ro.product.model "fake" and the properties set
+ * <dt>shell:cat                   <dd>echoes its input until closed
+ * <dt>shell:gen N                 <dd>writes N bytes and closes
+ * <dt>shell:screencap, framebuffer: <dd>a frame of <code>pullSize</code> bytes, after the header and nudge for framebuffer:
+ * <dt>shell:...                   <dd>writes the command line back and closes
+ * <dt>sync:                       <dd>STAT and LIST of empty files, SEND consumed, RECV of <code>pullSize</code> bytes, QUIT
+ * <dt>tcp:PORT and others         <dd>sink
+ * </dl>
+ * Every reply is delayed by the latency, and each stream is throttled to the bandwidth both ways.
+ */
+class FakeAdbServer implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FakeAdbServer.class);
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+    private static final int CHUNK = 16 * 1024;
+    private final CopyOnWriteArrayList<String> serials;
+    private final long latency;
+    private final long bandwidth;
+    private final int pullSize;
+    private final ServerSocket socket;
+    private final Map<String, AtomicInteger> opens = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> properties = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fake-adb");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param latency ms before each reply
+     * @param bandwidth bytes/s of each stream, 0 for unlimited
+     * @param pullSize bytes of a sync RECV
+     */
+    FakeAdbServer(Collection<String> serials, long latency, long bandwidth, int pullSize) throws IOException {
+        this.serials = new CopyOnWriteArrayList<>(serials);
+        this.latency = latency;
+        this.bandwidth = bandwidth;
+        this.pullSize = pullSize;
+        this.socket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return how many times the device service was opened
+     */
+    int getOpenCount(String service) {
+        AtomicInteger count = opens.get(service);
+        return count != null ? count.get() : 0;
+    }
+
+    void setProperty(String serial, String name, String value) {
+        properties.computeIfAbsent(serial, s -> new ConcurrentHashMap<>()).put(name, value);
+    }
+
+    List<String> getSerials() {
+        return serials;
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+    }
+
+    FakeAdbServer start() {
+        LOGGER.info("fake adb server on {} with {} devices", getAddress(), serials.size());
+        executor.execute(() -> {
+            while (!socket.isClosed()) {
+                try {
+                    Socket s = socket.accept();
+                    executor.execute(() -> serve(s));
+                } catch (IOException e) {
+                    //closed
+                }
+            }
+        });
+        return this;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //do nothing
+        }
+        executor.shutdownNow();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            String request = readRequest(in);
+            if ("host:version".equals(request)) {
+                okay(out, "0029");
+            } else if (request.startsWith("host:devices")) {
+                StringBuilder devices = new StringBuilder();
+                for (String serial : serials) {
+                    devices.append(serial).append("\tdevice\n");
+                }
+                okay(out, devices.toString());
+            } else if (request.startsWith("host:connect:")) {
+                String serial = request.substring("host:connect:".length());
+                okay(out, serials.addIfAbsent(serial) ? "connected to " + serial : "already connected to " + serial);
+            } else if (request.startsWith("host:disconnect:")) {
+                String serial = request.substring("host:disconnect:".length());
+                okay(out, serials.remove(serial) ? "disconnected " + serial : "no such device '" + serial + "'");
+            } else if (request.startsWith("host:transport:")) {
+                String serial = request.substring("host:transport:".length());
+                delay();
+                if (!serials.contains(serial)) {
+                    fail(out, "device '" + serial + "' not found");
+                    return;
+                }
+                out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                String service = readRequest(in);
+                delay();
+                out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                serveDevice(serial, service, in, out);
+            } else {
+                fail(out, "unknown host service");
+            }
+        } catch (IOException | InterruptedException e) {
+            //proxy closed the stream
+        }
+    }
+
+    private void serveDevice(String serial, String service, InputStream in, OutputStream out) throws IOException, InterruptedException {
+        opens.computeIfAbsent(service, s -> new AtomicInteger()).incrementAndGet();
+        Pacer pacer = new Pacer();
+        if ("framebuffer:".equals(service)) {
+            ByteBuffer header = ByteBuffer.allocate(13 * 4).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(1).putInt(32).putInt(pullSize).putInt(pullSize / 4).putInt(1);
+            header.putInt(0).putInt(8).putInt(16).putInt(8).putInt(8).putInt(8).putInt(24).putInt(8);
+            delay();
+            out.write(header.array());
+            out.flush();
+            if (in.read() >= 0) {
+                writeFrame(out, pacer);
+            }
+        } else if (service.startsWith("shell:screencap") || service.startsWith("exec:screencap")) {
+            delay();
+            writeFrame(out, pacer);
+        } else if ("shell:cat".equals(service)) {
+            byte[] buffer = new byte[CHUNK];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                pacer.pace(read);
+                delay();
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } else if ("shell:getprop".equals(service)) {
+            Map<String, String> values = new TreeMap<>(properties.getOrDefault(serial, Collections.emptyMap()));
+            values.putIfAbsent("ro.product.model", "fake");
+            values.put("ro.serialno", serial);
+            StringBuilder getprop = new StringBuilder();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                getprop.append('[').append(entry.getKey()).append("]: [").append(entry.getValue()).append("]\n");
+            }
+            delay();
+            out.write(getprop.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } else if (service.startsWith("shell:gen ")) {
+            long remaining = Long.parseLong(service.substring("shell:gen ".length()).trim());
+            byte[] buffer = new byte[CHUNK];
+            delay();
+            while (remaining > 0) {
+                int count = (int) Math.min(remaining, buffer.length);
+                pacer.pace(count);
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+            out.flush();
+        } else if (service.startsWith("shell:")) {
+            delay();
+            out.write((service.substring("shell:".length()) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } else if (service.startsWith("sync:")) {
+            serveSync(in, out, pacer);
+        } else {
+            byte[] buffer = new byte[CHUNK];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                pacer.pace(read);
+            }
+        }
+    }
+
+    private void serveSync(InputStream in, OutputStream out, Pacer pacer) throws IOException, InterruptedException {
+        while (true) {
+            ByteBuffer request = ByteBuffer.wrap(readFully(in, 8)).order(ByteOrder.LITTLE_ENDIAN);
+            String id = new String(request.array(), 0, 4, StandardCharsets.US_ASCII);
+            int length = request.getInt(4);
+            if ("QUIT".equals(id)) {
+                return;
+            }
+            readFully(in, length);//path
+            switch (id) {
+                case "STAT":
+                    delay();
+                    out.write(syncPacket("STAT", 0100644, 0, (int) (System.currentTimeMillis() / 1000)));
+                    break;
+                case "LIST":
+                    delay();
+                    out.write(syncPacket("DONE", 0, 0, 0, 0));
+                    break;
+                case "SEND":
+                    while (true) {
+                        ByteBuffer data = ByteBuffer.wrap(readFully(in, 8)).order(ByteOrder.LITTLE_ENDIAN);
+                        if (!"DATA".equals(new String(data.array(), 0, 4, StandardCharsets.US_ASCII))) {
+                            break;//DONE with mtime
+                        }
+                        int size = data.getInt(4);
+                        readFully(in, size);
+                        pacer.pace(size);
+                    }
+                    delay();
+                    out.write(syncPacket("OKAY", 0));
+                    break;
+                case "RECV":
+                    delay();
+                    byte[] chunk = new byte[SYNC_DATA_MAX];
+                    for (int remaining = pullSize; remaining > 0; remaining -= SYNC_DATA_MAX) {
+                        int size = Math.min(remaining, SYNC_DATA_MAX);
+                        pacer.pace(size);
+                        out.write(syncPacket("DATA", size));
+                        out.write(chunk, 0, size);
+                    }
+                    out.write(syncPacket("DONE", 0));
+                    break;
+                default:
+                    String error = "unknown sync request " + id;
+                    out.write(syncPacket("FAIL", error.length()));
+                    out.write(error.getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    return;
+            }
+            out.flush();
+        }
+    }
+
+    private void writeFrame(OutputStream out, Pacer pacer) throws IOException, InterruptedException {
+        byte[] buffer = new byte[CHUNK];
+        for (int remaining = pullSize; remaining > 0; remaining -= CHUNK) {
+            int count = Math.min(remaining, CHUNK);
+            pacer.pace(count);
+            out.write(buffer, 0, count);
+        }
+        out.flush();
+    }
+
+    private static byte[] syncPacket(String id, int... values) {
+        ByteBuffer packet = ByteBuffer.allocate(4 + 4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        packet.put(id.getBytes(StandardCharsets.US_ASCII));
+        for (int value : values) {
+            packet.putInt(value);
+        }
+        return packet.array();
+    }
+
+    private static void okay(OutputStream out, String reply) throws IOException {
+        out.write(String.format("OKAY%04x%s", reply.length(), reply).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void fail(OutputStream out, String error) throws IOException {
+        out.write(String.format("FAIL%04x%s", error.length(), error).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void delay() throws InterruptedException {
+        if (latency > 0) {
+            TimeUnit.MILLISECONDS.sleep(latency);
+        }
+    }
+
+    static String readRequest(InputStream in) throws IOException {
+        byte[] length = readFully(in, 4);
+        return new String(readFully(in, Integer.parseInt(new String(length, StandardCharsets.US_ASCII), 16)), StandardCharsets.UTF_8);
+    }
+
+    static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int count = 0;
+        while (count < length) {
+            int read = in.read(bytes, count, length - count);
+            if (read < 0) {
+                throw new IOException("closed");
+            }
+            count += read;
+        }
+        return bytes;
+    }
+
+    static void drain(InputStream in) {
+        byte[] buffer = new byte[16 * 1024];
+        try {
+            while (in.read(buffer) >= 0) {
+                //discard what the proxy writes to the device
+            }
+        } catch (IOException e) {
+            //closed
+        }
+    }
+
+    /**
+     * Holds a stream to the bandwidth by sleeping until its bytes are due
+     */
+    private final class Pacer {
+        private final long start = System.nanoTime();
+        private long bytes;
+
+        void pace(int count) throws InterruptedException {
+            if (bandwidth > 0) {
+                bytes += count;
+                long delay = (long) (bytes * 1e9 / bandwidth) - (System.nanoTime() - start);
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package io.github.syncxplus.tcpusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of the proxy on one box: a {@link FakeAdbServer} stands in for adb and its devices, one
+ * {@link Server} is started per fake device, and synthetic clients authenticate with real RSA keys
+ * and run a workload until the duration is over.
+ * <dl>
+ * <dt>opens   <dd>short <code>shell:</code> commands, open to close
+ * <dt>pull    <dd>sync RECV of <code>--pull</code> MB
+ * <dt>echo    <dd>64-byte writes echoed by <code>shell:cat</code>, timed round trip
+ * <dt>mixed   <dd>8 opens, 1 echo session, 1 pull
+ * </dl>
+ * Reports opens/s, MB/s, open and echo latency percentiles, and the peak thread count and heap.
+ * <pre>
+ * gradle loadTest -Pload='--devices 4 --clients 64 --duration 30 --workload mixed --latency 2 --bandwidth 20'
+ * </pre>
+ */
+public class LoadHarness {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadHarness.class);
+    private static final long TIMEOUT = 30;
+    private static final int ECHO_WRITES = 20;
+    private static final byte[] ECHO = new byte[64];
+    private final Map<String, String> options;
+    private final int devices;
+    private final int clients;
+    private final int duration;
+    private final String workload;
+    private final int pullSize;
+    private final AtomicLong opens = new AtomicLong();
+    private final AtomicLong failedOpens = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final Latencies openLatencies = new Latencies();
+    private final Latencies echoLatencies = new Latencies();
+    private volatile boolean running;
+    private int peakThreads;
+    private long peakHeap;
+    private long retainedHeap;
+    private long elapsed;
+
+    LoadHarness(Map<String, String> options) {
+        this.options = options;
+        this.devices = Integer.parseInt(option("devices", "4"));
+        this.clients = Integer.parseInt(option("clients", "16"));
+        this.duration = Integer.parseInt(option("duration", "30"));
+        this.workload = option("workload", "mixed");
+        this.pullSize = (int) (Double.parseDouble(option("pull", "8")) * 1024 * 1024);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.err.println("Usage: LoadHarness [--devices 4] [--clients 16] [--duration 30] [--workload opens|pull|echo|mixed]"
+                        + " [--latency ms] [--bandwidth MB/s] [--pull MB] [--keys 4] [--coalesce true]");
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        LoadHarness harness = new LoadHarness(options);
+        harness.run();
+        harness.report(System.out);
+        System.exit(0);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    void run() throws Exception {
+        List<String> serials = new ArrayList<>();
+        for (int i = 0; i < devices; i++) {
+            serials.add(String.format("fake-%04d", i));
+        }
+        long latency = Long.parseLong(option("latency", "0"));
+        long bandwidth = (long) (Double.parseDouble(option("bandwidth", "0")) * 1024 * 1024);
+        KeyPair[] keys = new KeyPair[Integer.parseInt(option("keys", "4"))];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = AdbClient.generateKey();
+        }
+        List<Server> servers = new ArrayList<>();
+        int[] ports = new int[devices];
+        try (FakeAdbServer adb = new FakeAdbServer(serials, latency, bandwidth, pullSize).start()) {
+            for (int i = 0; i < devices; i++) {
+                ports[i] = SessionReplay.getFreePort();
+                Server server = Server.getInstance(AdbShards.device(serials.get(i), name -> "replay"));
+                server.setKey(serials.get(i));
+                server.setPort(ports[i]);
+                server.setAdbAddress(adb.getAddress());
+                server.setSyncCoalescing(Boolean.parseBoolean(option("coalesce", "false")));
+                server.start();
+                servers.add(server);
+            }
+            for (int port : ports) {
+                SessionReplay.awaitListening(port);
+            }
+            LOGGER.info("{} clients on {} devices, workload {}, {} s", clients, devices, workload, duration);
+            running = true;
+            long start = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                int port = ports[i % devices];
+                String serial = serials.get(i % devices);
+                KeyPair key = keys[i % keys.length];
+                Thread thread = new Thread(() -> runClient(port, serial, key), "load-client-" + threads.size());
+                thread.start();
+                threads.add(thread);
+            }
+            sample(start + TimeUnit.SECONDS.toNanos(duration));
+            running = false;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            elapsed = System.nanoTime() - start;
+            for (Server server : servers) {
+                server.stop();
+            }
+            for (String serial : serials) {
+                Server.removeInstance(serial);
+            }
+        }
+        System.gc();
+        retainedHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private void sample(long end) throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        threads.resetPeakThreadCount();
+        while (System.nanoTime() < end) {
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+            TimeUnit.MILLISECONDS.sleep(Math.max(1, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+        }
+        peakThreads = threads.getPeakThreadCount();
+    }
+
+    private void runClient(int port, String serial, KeyPair key) {
+        try (AdbClient client = new AdbClient(InetAddress.getLoopbackAddress().getHostAddress(), port, key)) {
+            client.connect();
+            AdbClient.Stream auth = client.open("shell:auth " + serial);
+            if (!auth.awaitClose(TIMEOUT, TimeUnit.SECONDS)) {
+                throw new IOException("shell:auth timed out");
+            }
+            for (int i = 0; running && !client.isClosed(); i++) {
+                String step = "mixed".equals(workload) ? (i % 10 == 9 ? "pull" : i % 10 == 8 ? "echo" : "opens") : workload;
+                switch (step) {
+                    case "pull":
+                        pull(client);
+                        break;
+                    case "echo":
+                        echo(client);
+                        break;
+                    default:
+                        open(client);
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            LOGGER.warn("load client error", e);
+        }
+    }
+
+    private AdbClient.Stream open(AdbClient client, String service) throws IOException, InterruptedException {
+        AdbClient.Stream stream = client.open(service);
+        long latency = stream.awaitOpen(TIMEOUT, TimeUnit.SECONDS);
+        if (latency < 0) {
+            failedOpens.incrementAndGet();
+            return null;
+        }
+        opens.incrementAndGet();
+        openLatencies.record(latency);
+        return stream;
+    }
+
+    private void open(AdbClient client) throws Exception {
+        AdbClient.Stream stream = open(client, "shell:echo load");
+        if (stream != null) {
+            stream.awaitClose(TIMEOUT, TimeUnit.SECONDS);
+            bytesReceived.addAndGet(stream.getBytesReceived());
+        }
+    }
+
+    private void pull(AdbClient client) throws Exception {
+        AdbClient.Stream stream = open(client, "sync:");
+        if (stream != null) {
+            byte[] path = "/sdcard/load.bin".getBytes(StandardCharsets.UTF_8);
+            stream.write(syncRequest("RECV", path));
+            int chunks = (pullSize + 64 * 1024 - 1) / (64 * 1024);
+            stream.awaitBytes(pullSize + 8L * chunks + 8, TIMEOUT, TimeUnit.SECONDS);
+            stream.write(syncRequest("QUIT", new byte[0]));
+            stream.awaitClose(TIMEOUT, TimeUnit.SECONDS);
+            bytesReceived.addAndGet(stream.getBytesReceived());
+        }
+    }
+
+    private void echo(AdbClient client) throws Exception {
+        AdbClient.Stream stream = open(client, "shell:cat");
+        if (stream != null) {
+            for (int i = 1; i <= ECHO_WRITES && running; i++) {
+                long start = System.nanoTime();
+                stream.write(ECHO);
+                bytesSent.addAndGet(ECHO.length);
+                if (!stream.awaitBytes((long) i * ECHO.length, TIMEOUT, TimeUnit.SECONDS)) {
+                    break;
+                }
+                echoLatencies.record(System.nanoTime() - start);
+            }
+            stream.close();
+            stream.awaitClose(TIMEOUT, TimeUnit.SECONDS);
+            bytesReceived.addAndGet(stream.getBytesReceived());
+        }
+    }
+
+    private static byte[] syncRequest(String id, byte[] path) {
+        ByteBuffer request = ByteBuffer.allocate(8 + path.length).order(ByteOrder.LITTLE_ENDIAN);
+        request.put(id.getBytes(StandardCharsets.US_ASCII));
+        request.putInt(path.length);
+        request.put(path);
+        return request.array();
+    }
+
+    long getOpens() {
+        return opens.get();
+    }
+
+    long getFailedOpens() {
+        return failedOpens.get();
+    }
+
+    long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    void report(PrintStream out) {
+        double seconds = elapsed / 1e9;
+        out.printf("%d clients on %d devices, workload %s, %.2f s%n", clients, devices, workload, seconds);
+        out.printf("opens %d (%.1f/s), failed %d, client errors %d%n", opens.get(), opens.get() / seconds, failedOpens.get(), errors.get());
+        out.printf("received %d bytes (%.2f MB/s), sent %d bytes%n", bytesReceived.get(), bytesReceived.get() / seconds / 1024 / 1024, bytesSent.get());
+        out.printf("open latency p50/p99/max %s%n", openLatencies.summary());
+        out.printf("echo round trip p50/p99/max %s%n", echoLatencies.summary());
+        out.printf("threads peak %d, heap peak %.1f MB, retained %.1f MB%n", peakThreads, peakHeap / 1024.0 / 1024, retainedHeap / 1024.0 / 1024);
+    }
+}
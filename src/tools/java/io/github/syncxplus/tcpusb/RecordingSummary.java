@@ -0,0 +1,124 @@
+package io.github.syncxplus.tcpusb;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summarizes the tcpusb events of a flight recording made with <code>tcpusb.jfc</code>:
+ * count, total, p50, p99 and max duration per event type and command/phase, ordered by total time.
+ * <pre>
+ * gradle jfrSummary -Precording=tcpusb.jfr [-PbySerial]
+ * </pre>
+ */
+public class RecordingSummary {
+    private static final String[] JDK_EVENTS = {"jdk.SocketRead", "jdk.SocketWrite", "jdk.JavaMonitorEnter"};
+    private final Map<String, Row> rows = new HashMap<>();
+    private final boolean bySerial;
+
+    private RecordingSummary(boolean bySerial) {
+        this.bySerial = bySerial;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: RecordingSummary <recording.jfr> [--by-serial]");
+            System.exit(1);
+        }
+        RecordingSummary summary = new RecordingSummary(args.length > 1 && "--by-serial".equals(args[1]));
+        summary.read(Paths.get(args[0]));
+        summary.print(System.out);
+    }
+
+    private void read(Path recording) throws IOException {
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                String key = getKey(event);
+                if (key != null) {
+                    Row row = rows.get(key);
+                    if (row == null) {
+                        row = new Row(key);
+                        rows.put(key, row);
+                    }
+                    row.add(event);
+                }
+            }
+        }
+    }
+
+    private String getKey(RecordedEvent event) {
+        String type = event.getEventType().getName();
+        StringBuilder key = new StringBuilder();
+        if (type.startsWith(ProxyEvents.PREFIX)) {
+            key.append(type.substring(ProxyEvents.PREFIX.length()));
+        } else {
+            for (String name : JDK_EVENTS) {
+                if (name.equals(type)) {
+                    key.append(type);
+                }
+            }
+            if (key.length() == 0) {
+                return null;
+            }
+        }
+        for (String field : new String[] {"phase", "command", "success"}) {
+            if (event.hasField(field)) {
+                key.append(' ').append(field).append('=').append(event.getValue(field).toString());
+            }
+        }
+        if (bySerial && event.hasField("serial") && event.getString("serial") != null) {
+            key.append(' ').append(event.getString("serial"));
+        }
+        return key.toString();
+    }
+
+    private void print(PrintStream out) {
+        List<Row> sorted = new ArrayList<>(rows.values());
+        sorted.sort((a, b) -> Long.compare(b.total, a.total));
+        out.printf("%-56s %10s %12s %10s %10s %10s %12s%n", "event", "count", "total ms", "p50 us", "p99 us", "max us", "bytes");
+        for (Row row : sorted) {
+            Collections.sort(row.durations);
+            out.printf("%-56s %10d %12.1f %10d %10d %10d %12d%n", row.key, row.durations.size(), row.total / 1e6,
+                    row.percentile(50) / 1000, row.percentile(99) / 1000, row.percentile(100) / 1000, row.bytes);
+        }
+    }
+
+    private static final class Row {
+        private final String key;
+        private final List<Long> durations = new ArrayList<>();
+        private long total;
+        private long bytes;
+
+        Row(String key) {
+            this.key = key;
+        }
+
+        void add(RecordedEvent event) {
+            long nanos = event.getDuration().toNanos();
+            durations.add(nanos);
+            total += nanos;
+            if (event.hasField("size")) {
+                bytes += event.getLong("size");
+            } else if (event.hasField("bytesRead")) {
+                bytes += event.getLong("bytesRead");
+            } else if (event.hasField("bytesWritten")) {
+                bytes += event.getLong("bytesWritten");
+            }
+        }
+
+        long percentile(int percentile) {
+            int index = (int) Math.ceil(percentile / 100.0 * durations.size()) - 1;
+            return durations.get(Math.max(index, 0));
+        }
+    }
+}
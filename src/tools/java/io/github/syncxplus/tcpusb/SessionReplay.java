@@ -0,0 +1,281 @@
+package io.github.syncxplus.tcpusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a {@link SessionCapture} file against a local {@link Server}: the recorded client packets
+ * are sent by synthetic clients, and a stand-in adb server answers each stream with the bytes the
+ * real adb server sent for it. Authentication is redone with a fresh key and client acks follow the
+ * replayed server, everything else keeps the recorded timing divided by the speed (0 for no pauses).
+ * <pre>
+ * gradle replay -Pcapture=/tmp/tcpusb/SERIAL.tcap [-Pspeed=10]
+ * </pre>
+ */
+public class SessionReplay {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionReplay.class);
+    private static final long CLOSE_TIMEOUT = 5;
+    private final SessionCapture.Recording recording;
+    private final double speed;
+    private final Map<String, Deque<List<SessionCapture.Record>>> scripts = new HashMap<>();
+    private final Map<Integer, List<SessionCapture.Record>> clients = new LinkedHashMap<>();
+    private final Latencies openLatencies = new Latencies();
+    private final Latencies writeLatencies = new Latencies();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private long base;
+    private long start;
+
+    SessionReplay(SessionCapture.Recording recording, double speed) {
+        this.recording = recording;
+        this.speed = speed;
+        Map<Long, List<SessionCapture.Record>> streams = new LinkedHashMap<>();
+        Map<Long, String> services = new HashMap<>();
+        for (SessionCapture.Record record : recording.records) {
+            long stream = (long) record.connection << 32 | (record.stream & 0xFFFFFFFFL);
+            switch (record.type) {
+                case SessionCapture.CLIENT_IN:
+                    clients.computeIfAbsent(record.connection, c -> new ArrayList<>()).add(record);
+                    ByteBuffer header = ByteBuffer.wrap(record.data).order(ByteOrder.LITTLE_ENDIAN);
+                    if (header.getInt(0) == Protocol.A_OPEN) {
+                        String service = new String(record.data, Protocol.HEADER_LENGTH, record.data.length - Protocol.HEADER_LENGTH, StandardCharsets.UTF_8).trim();
+                        services.put((long) record.connection << 32 | (header.getInt(4) & 0xFFFFFFFFL), service);
+                    }
+                    break;
+                case SessionCapture.DEVICE_IN:
+                case SessionCapture.DEVICE_END:
+                    streams.computeIfAbsent(stream, s -> new ArrayList<>()).add(record);
+                    break;
+                default:
+                    break;
+            }
+        }
+        for (Map.Entry<Long, List<SessionCapture.Record>> entry : streams.entrySet()) {
+            String service = services.get(entry.getKey());
+            if (service != null) {
+                scripts.computeIfAbsent(service, s -> new ArrayDeque<>()).add(entry.getValue());
+            }
+        }
+        if (!recording.records.isEmpty()) {
+            base = recording.records.get(0).nanos;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SessionReplay <capture.tcap> [speed]");
+            System.exit(1);
+        }
+        SessionCapture.Recording recording = SessionCapture.read(Paths.get(args[0]));
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        new SessionReplay(recording, speed).run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        try (ServerSocket adb = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread standIn = new Thread(() -> serveAdb(adb), "replay-adb");
+            standIn.setDaemon(true);
+            standIn.start();
+            int port = getFreePort();
+            Server server = Server.getInstance(AdbShards.device(recording.serial, name -> "replay"));
+            server.setKey(recording.serial);
+            server.setPort(port);
+            server.setAdbAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), adb.getLocalPort()));
+            server.start();
+            awaitListening(port);
+            KeyPair key = AdbClient.generateKey();
+            start = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (Map.Entry<Integer, List<SessionCapture.Record>> entry : clients.entrySet()) {
+                Thread thread = new Thread(() -> replayClient(entry.getValue(), port, key), "replay-client-" + entry.getKey());
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long duration = System.nanoTime() - start;
+            server.stop();
+            Server.removeInstance(recording.serial);
+            report(System.out, threads.size(), duration);
+        }
+    }
+
+    static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void awaitListening(int port) throws IOException, InterruptedException {
+        for (int i = 0; ; i++) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setSoLinger(true, 0);
+                return;
+            } catch (IOException e) {
+                if (i > 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void pace(long nanos) throws InterruptedException {
+        if (speed > 0) {
+            long delay = (long) ((nanos - base) / speed) - (System.nanoTime() - start);
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+        }
+    }
+
+    private void replayClient(List<SessionCapture.Record> records, int port, KeyPair key) {
+        AdbClient client = null;
+        Map<Integer, AdbClient.Stream> streams = new HashMap<>();
+        try {
+            for (SessionCapture.Record record : records) {
+                ByteBuffer header = ByteBuffer.wrap(record.data).order(ByteOrder.LITTLE_ENDIAN);
+                int command = header.getInt(0);
+                int arg0 = header.getInt(4);
+                if (client == null && command != Protocol.A_CNXN) {
+                    continue;//the start of this connection was overwritten in the ring
+                }
+                pace(record.nanos);
+                byte[] payload = Arrays.copyOfRange(record.data, Protocol.HEADER_LENGTH, record.data.length);
+                switch (command) {
+                    case Protocol.A_CNXN:
+                        if (client == null) {
+                            client = new AdbClient(InetAddress.getLoopbackAddress().getHostAddress(), port, key);
+                            client.connect();
+                        }
+                        break;
+                    case Protocol.A_OPEN:
+                        streams.put(arg0, client.open(new String(payload, StandardCharsets.UTF_8).replace("\0", "")));
+                        break;
+                    case Protocol.A_WRTE:
+                        AdbClient.Stream stream = streams.get(arg0);
+                        if (stream != null) {
+                            stream.write(payload);
+                            bytesSent.addAndGet(payload.length);
+                        }
+                        break;
+                    case Protocol.A_CLSE:
+                        stream = streams.get(arg0);
+                        if (stream != null) {
+                            stream.close();
+                        }
+                        break;
+                    default:
+                        break;//auth is redone and acks follow the replayed server
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("replay client error", e);
+        } finally {
+            if (client != null) {
+                for (AdbClient.Stream stream : streams.values()) {
+                    try {
+                        stream.awaitClose(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    bytesReceived.addAndGet(stream.getBytesReceived());
+                }
+                client.close();
+                openLatencies.addAll(client.openLatencies);
+                writeLatencies.addAll(client.writeLatencies);
+            }
+        }
+    }
+
+    private void serveAdb(ServerSocket adb) {
+        while (!adb.isClosed()) {
+            try {
+                Socket socket = adb.accept();
+                new Thread(() -> serveStream(socket), "replay-adb-" + socket.getPort()).start();
+            } catch (IOException e) {
+                //closed
+            }
+        }
+    }
+
+    private void serveStream(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            FakeAdbServer.readRequest(in);//host:transport:SERIAL
+            out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+            String service = FakeAdbServer.readRequest(in);
+            List<SessionCapture.Record> script;
+            synchronized (scripts) {
+                Deque<List<SessionCapture.Record>> queue = scripts.get(service);
+                script = queue != null ? queue.poll() : null;
+            }
+            if (script == null) {
+                String error = "not recorded: " + service;
+                out.write(String.format("FAIL%04x%s", error.length(), error).getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            Thread drain = new Thread(() -> FakeAdbServer.drain(in), "replay-adb-drain-" + s.getPort());
+            drain.setDaemon(true);
+            drain.start();
+            int first = 0;
+            if (script.size() > 1 && "OKAY".equals(new String(script.get(0).data, StandardCharsets.US_ASCII))) {
+                first = 1;//transport status, answered above
+            }
+            long scriptBase = script.get(first).nanos;
+            long scriptStart = System.nanoTime();
+            for (SessionCapture.Record record : script.subList(first, script.size())) {
+                if (speed > 0) {
+                    long delay = (long) ((record.nanos - scriptBase) / speed) - (System.nanoTime() - scriptStart);
+                    if (delay > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    }
+                }
+                if (record.type == SessionCapture.DEVICE_END) {
+                    return;
+                }
+                out.write(record.data);
+                out.flush();
+            }
+            drain.join();
+        } catch (IOException | InterruptedException e) {
+            //proxy closed the stream
+        }
+    }
+
+    private void report(PrintStream out, int connections, long duration) {
+        double seconds = duration / 1e9;
+        out.printf("replayed %d connections of %s at speed %s in %.2f s%n", connections, recording.serial, speed > 0 ? speed : "max", seconds);
+        out.printf("received %d bytes (%.2f MB/s), sent %d bytes (%.2f MB/s)%n",
+                bytesReceived.get(), bytesReceived.get() / seconds / 1024 / 1024, bytesSent.get(), bytesSent.get() / seconds / 1024 / 1024);
+        out.printf("open latency p50/p99/max %s%n", openLatencies.summary());
+        out.printf("write ack latency p50/p99/max %s%n", writeLatencies.summary());
+    }
+}